@@ -1,21 +1,112 @@
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 /**
  * Analyzes the statements
  */
 class Analyzer {
-
-    // Environment for the language
-    private Map<Object, Object> environment = new HashMap<>();
+    // Fewest independent statements in a row worth running in parallel, and how many each task runs in turn
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final int PARALLEL_CHUNK = 64;
+    // Fewest fact keys each task of a parallel scan compares
+    private static final int PARALLEL_SCAN_RANGE = 4096;
+    // Advanced whenever a fact table is taken out of the database or replaced, so a statement that resolved its
+    // table knows when to look it up again. The analyzers of a server share their database, so one count serves all.
+    private static final AtomicInteger TABLE_VERSION = new AtomicInteger();
+
+    // Environment for the language, replaced on every write so any version of it can be kept as a snapshot.
+    // Numbers are kept unboxed in their own map, every other value is kept in the environment map.
+    private PersistentIntMap<Object> numbers = PersistentIntMap.empty();
+    private PersistentMap<Object, Object> environment = PersistentMap.empty();
     // Database of defined predicates
-    HashMap<String, HashMap<List<Token>, Predicate>> database;
+    HashMap<Symbol, HashMap<List<Token>, Predicate>> database;
+    // Index of the facts of each predicate by argument position
+    private final Map<Symbol, FactIndex> indexes;
+    // Facts of each predicate kept off the heap, along with the ones in its fact table
+    private Map<Symbol, FactColumns> columns = new HashMap<>();
+    // Whether facts loaded in bulk are kept off the heap
+    private boolean offHeapFacts;
+    // Limits on the evaluation of a statement with a user defined predicate
+    private int maxDepth = 10_000;
+    private long maxSteps = 10_000_000;
+    // Remembered results of user defined predicates, null unless memoization is turned on
+    private MemoTable memo;
+    // Whether changes to the environment and database are being recorded
+    private boolean trackChanges;
+    // Bindings written since the last clearChanges, in the order they were written
+    private final Map<Object, Object> changedBindings = new LinkedHashMap<>();
+    // Bindings that did not exist before they were written
+    private final Set<Object> addedBindings = new HashSet<>();
+    // Facts and predicates inserted since the last clearChanges
+    private final Map<Symbol, Map<List<Token>, Predicate>> changedFacts = new LinkedHashMap<>();
+    // Relations deferred until one of their unknown names is bound, by name. The lists are never changed in place.
+    private PersistentMap<Object, List<Relation>> pending = PersistentMap.empty();
+    // Deferred relations waiting to be solved while bindings propagate
+    private final Deque<Relation> woken = new ArrayDeque<>();
+    private boolean propagating;
+    // Actions that undo the writes to the database since the oldest open snapshot, newest last
+    private final List<Runnable> undoLog = new ArrayList<>();
+    // Whether independent statements of a line are run in parallel
+    private boolean parallel;
+    // Fewest fact keys to compare before a query scans them in parallel
+    private int parallelScanThreshold = 50_000;
+    // Names and values bound, in order, by an analyzer running part of a line in parallel, null otherwise
+    private List<Object> writes;
+    // Journal the writes of each committed line are appended to, null unless journaling is turned on
+    private Journal journal;
+    // Whether the journal holds the environment of this analyzer too, and its lines are committed by analyze. The
+    // sessions of a server share one journal for the database and commit their lines themselves.
+    private boolean journalEnvironment;
+
+    /**
+     * State of the analyzer at one point, restored by rollback. Snapshots have to be committed or rolled back
+     * in the reverse order they were taken.
+     */
+    static class Snapshot {
+        private final PersistentIntMap<Object> numbers;
+        private final PersistentMap<Object, Object> environment;
+        private final PersistentMap<Object, List<Relation>> pending;
+        // Size of the undo log and of the journal records of the line when the snapshot was taken
+        private final int undoMark;
+        private final int journalMark;
+
+        private Snapshot(PersistentIntMap<Object> numbers, PersistentMap<Object, Object> environment,
+                         PersistentMap<Object, List<Relation>> pending, int undoMark, int journalMark) {
+            this.numbers = numbers;
+            this.environment = environment;
+            this.pending = pending;
+            this.undoMark = undoMark;
+            this.journalMark = journalMark;
+        }
+    }
+
+    public Analyzer(HashMap<Symbol, HashMap<List<Token>, Predicate>> database) {
+        this(database, new HashMap<>());
+    }
 
-    public Analyzer(HashMap<String, HashMap<List<Token>, Predicate>> database) {
+    public Analyzer(HashMap<Symbol, HashMap<List<Token>, Predicate>> database, Map<Symbol, FactIndex> indexes) {
         this.database = database;
+        this.indexes = indexes;
+    }
+
+    public Analyzer(HashMap<Symbol, HashMap<List<Token>, Predicate>> database, Map<Symbol, FactIndex> indexes,
+                    Map<Symbol, FactColumns> columns) {
+        this(database, indexes);
+        this.columns = columns;
     }
     /**
      * The main analyzer for the parsed tokens
@@ -23,82 +114,443 @@ class Analyzer {
      * @param statements the statements to analyze
      */
     public Statement analyze(List<Statement> statements) {
-        // Iterate through all the statements
-        for (Statement statement : statements) {
-            switch (statement.predicate) {
-                // If the predicate is "fatci"
-                case "fatci":
-                    handleFatci(statement);
-                    break;
-                // If the predicate is "sumji"
-                case "sumji":
-                    handleSumji(statement);
-                    break;
-                // If the predicate is "vunji"
-                case "vujni":
-                    handleVujni(statement);
-                    break;
-                // If the predicate is "dunli"
-                case "dunli":
-                    handleDunli(statement);
-                    break;
-                // If the predicate is "steni"
-                case "steni":
-                    handleSteni(statement);
-                    break;
-                // If the predicate is "steko"
-                case "steko":
-                    handleSteko(statement);
-                    break;
-                // If the predicate is "cmavo"
-                case "cmavo":
-                    handleCmavo(statement);
-                    break;
-                default:
-                    handleDatabase(statement);
-            }
+        // The line either takes effect as a whole or not at all
+        Snapshot snapshot = snapshot();
+        try {
+            analyzeAll(statements);
+        } catch (RuntimeException e) {
+            rollback(snapshot);
+            throw e;
+        }
+        commit(snapshot);
+        if (journal != null && journalEnvironment) {
+            // The result of the line is only shown once the line is durable
+            journal.awaitForced(journal.commitLine());
         }
         // Return the last statement after analyzing all statements
         return getLastStatementResult(statements);
     }
 
     /**
-     * Handles statements with custom predicates
+     * Helper method to analyze each statement in turn
+     *
+     * @param statements the statements to analyze
+     */
+    private void analyzeAll(List<Statement> statements) {
+        int next = 0;
+        while (next < statements.size()) {
+            // Statements that do not depend on each other may run at once, a short run is not worth it
+            int end = parallel ? independentRun(statements, next) : next;
+            if (end - next >= PARALLEL_THRESHOLD) {
+                analyzeParallel(statements.subList(next, end));
+                next = end;
+                continue;
+            }
+            // Iterate through the statements in turn
+            for (int stop = Math.max(end, next + 1); next < stop; next++) {
+                Statement statement = statements.get(next);
+                statement.setResult(analyzeStatement(statement));
+            }
+        }
+    }
+
+    /**
+     * Helper method to analyze one statement
+     *
+     * @param statement the statement to analyze
+     * @return the result of the statement
+     */
+    private Result analyzeStatement(Statement statement) {
+        switch (statement.opcode) {
+            // If the predicate is "fatci"
+            case FATCI:
+                return handleFatci(statement);
+            // If the predicate is "sumji"
+            case SUMJI:
+                return handleSumji(statement);
+            // If the predicate is "vunji"
+            case VUJNI:
+                return handleVujni(statement);
+            // If the predicate is "dunli"
+            case DUNLI:
+                return handleDunli(statement);
+            // If the predicate is "steni"
+            case STENI:
+                return handleSteni(statement);
+            // If the predicate is "steko"
+            case STEKO:
+                return handleSteko(statement);
+            // If the predicate is "cmavo"
+            case CMAVO:
+                return handleCmavo(statement);
+            // Otherwise it is a user defined predicate
+            default:
+                return handleDatabase(statement);
+        }
+    }
+
+    /**
+     * Helper method to find how far the statements from a position are independent of each other. Statements are
+     * independent when none of them writes a name another one reads or writes, so running them at once leaves the
+     * same environment as running them in turn. Only built-in predicates that touch nothing but the environment
+     * are run in parallel.
+     *
+     * @param statements the statements of the line
+     * @param from       the position of the first statement
+     * @return the position after the last statement of the independent run
+     */
+    private int independentRun(List<Statement> statements, int from) {
+        // Deferred relations may be woken by any binding, which ties every statement to every other
+        if (pending.size() > 0) {
+            return from;
+        }
+        Set<Object> reads = new HashSet<>();
+        Set<Object> written = new HashSet<>();
+        Set<Object> statementReads = new HashSet<>();
+        Set<Object> statementWrites = new HashSet<>();
+        int end = from;
+        for (; end < statements.size(); end++) {
+            statementReads.clear();
+            statementWrites.clear();
+            if (!accessedNames(statements.get(end), statementReads, statementWrites)) {
+                break;
+            }
+            boolean conflicts = false;
+            for (Object name : statementWrites) {
+                conflicts |= reads.contains(name) || written.contains(name);
+            }
+            for (Object name : statementReads) {
+                conflicts |= written.contains(name);
+            }
+            if (conflicts) {
+                break;
+            }
+            reads.addAll(statementReads);
+            written.addAll(statementWrites);
+        }
+        return end;
+    }
+
+    /**
+     * Helper method to get the names a statement may read and write, given the environment it will run against
+     *
+     * @param statement the statement
+     * @param reads     where the names it may read are added
+     * @param writes    where the names it may bind are added
+     * @return false if the statement cannot be run in parallel
+     */
+    private boolean accessedNames(Statement statement, Set<Object> reads, Set<Object> writes) {
+        Opcode opcode = statement.opcode;
+        if (opcode != Opcode.SUMJI && opcode != Opcode.VUJNI && opcode != Opcode.DUNLI
+                && opcode != Opcode.STENI && opcode != Opcode.STEKO) {
+            return false;
+        }
+        int unbound = 0;
+        for (int i = 0; i < statement.arguments.size(); i++) {
+            Token argument = statement.arguments.get(i);
+            if (argument.type != Token.Type.NAME && argument.type != Token.Type.PREDICATE) {
+                continue;
+            }
+            // A name bound to another name is read through to it
+            for (Object name = argument.value; name instanceof Symbol && reads.add(name); name = environment.get(name)) {
+                if (!numbers.containsKey(name) && !environment.containsKey(name)) {
+                    break;
+                }
+            }
+            if (opcode == Opcode.STENI || opcode == Opcode.STEKO) {
+                // The first argument is bound whether it has a value or not
+                if (i == 0) {
+                    writes.add(argument.value);
+                }
+            } else if (argument.type == Token.Type.NAME
+                    && !numbers.containsKey(argument.value) && !environment.containsKey(argument.value)) {
+                // Otherwise only a name without a value can be bound
+                writes.add(argument.value);
+                unbound++;
+            }
+        }
+        // A relation with two unknown names would be deferred, which ties it to every later binding
+        return unbound < 2 || opcode == Opcode.DUNLI;
+    }
+
+    /**
+     * Helper method to run independent statements in parallel. Each task runs a chunk of them in turn against its own
+     * copy of the environment, then the bindings of each chunk are written back in the order of the statements.
+     *
+     * @param statements the independent statements
+     */
+    private void analyzeParallel(List<Statement> statements) {
+        List<Chunk> chunks = new ArrayList<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int from = 0; from < statements.size(); from += PARALLEL_CHUNK) {
+            Chunk chunk = new Chunk(fork(), statements.subList(from, Math.min(from + PARALLEL_CHUNK, statements.size())));
+            chunks.add(chunk);
+            tasks.add(ForkJoinTask.adapt(chunk::run));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk.completed; i++) {
+                chunk.statements.get(i).setResult(chunk.results[i]);
+            }
+            // The first error in the order of the statements is the one running them in turn would have hit
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            for (int i = 0; i < chunk.analyzer.writes.size(); i += 2) {
+                bind(chunk.analyzer.writes.get(i), chunk.analyzer.writes.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Helper method to create an analyzer over the same environment and database, which records its bindings
+     * instead of tracking changes or memoizing
+     *
+     * @return the new analyzer
+     */
+    private Analyzer fork() {
+        Analyzer analyzer = new Analyzer(database, indexes, columns);
+        analyzer.numbers = numbers;
+        analyzer.environment = environment;
+        analyzer.pending = pending;
+        analyzer.writes = new ArrayList<>();
+        return analyzer;
+    }
+
+    /**
+     * Statements of an independent run analyzed in turn by one task, with their results and the first error
+     */
+    private static final class Chunk {
+        final Analyzer analyzer;
+        final List<Statement> statements;
+        final Result[] results;
+        int completed;
+        RuntimeException error;
+
+        Chunk(Analyzer analyzer, List<Statement> statements) {
+            this.analyzer = analyzer;
+            this.statements = statements;
+            this.results = new Result[statements.size()];
+        }
+
+        void run() {
+            try {
+                for (; completed < results.length; completed++) {
+                    results[completed] = analyzer.analyzeStatement(statements.get(completed));
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot of the environment and database, e.g. to evaluate something and then undo it
+     *
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(numbers, environment, pending, undoLog.size(), journal == null ? 0 : journal.mark());
+    }
+
+    /**
+     * Restores the environment and database to a snapshot
+     *
+     * @param snapshot the most recent open snapshot
+     */
+    public void rollback(Snapshot snapshot) {
+        numbers = snapshot.numbers;
+        environment = snapshot.environment;
+        pending = snapshot.pending;
+        for (int i = undoLog.size() - 1; i >= snapshot.undoMark; i--) {
+            undoLog.remove(i).run();
+        }
+        if (journal != null) {
+            journal.rollback(snapshot.journalMark);
+        }
+        // Remembered results may have read the writes that were undone
+        if (memo != null) {
+            memo = new MemoTable();
+        }
+        clearChanges();
+    }
+
+    /**
+     * Keeps the writes made since a snapshot
+     *
+     * @param snapshot the most recent open snapshot
+     */
+    public void commit(Snapshot snapshot) {
+        // Only an enclosing snapshot could still roll the writes back
+        if (snapshot.undoMark == 0) {
+            undoLog.clear();
+        }
+    }
+
+    /**
+     * Handles statements with custom predicates. Rules are evaluated on an explicit stack rather than by recursion.
+     *
+     * @param statement the statement that is being evaluated
+     * @return the result of the statement
+     * @throws IllegalArgumentException if a rule invokes itself or the evaluation goes over its limits
+     */
+    private Result handleDatabase(Statement statement) {
+        RuleStack stack = new RuleStack();
+        try {
+            Result result = invoke(statement, stack);
+            while (!stack.isEmpty()) {
+                RuleStack.Frame frame = stack.peek();
+                if (frame.next < frame.body.length) {
+                    if (++stack.steps > maxSteps) {
+                        throw new IllegalArgumentException(String.format("Evaluation of %s went over the limit of %d steps", statement.predicate, maxSteps));
+                    }
+                    Result stepResult = frame.body[frame.next++].run(this, stack);
+                    // A step that pushed a rule gets its result once that rule finishes
+                    if (stepResult != null) {
+                        frame.allTrue &= stepResult.isTrue();
+                    }
+                    continue;
+                }
+                // Every step of the rule has run, so hand its result to the rule that invoked it
+                stack.pop();
+                Result frameResult = Result.of(frame.allTrue);
+                if (memo != null) {
+                    memo.end(frame.call.predicate, frame.call.arguments, frameResult);
+                }
+                if (stack.isEmpty()) {
+                    result = frameResult;
+                } else {
+                    stack.peek().allTrue &= frameResult.isTrue();
+                }
+            }
+            return result;
+        } catch (RuntimeException e) {
+            // Stop recording the dependencies of the rules that did not finish
+            while (!stack.isEmpty()) {
+                RuleStack.Frame frame = stack.pop();
+                if (memo != null) {
+                    memo.end(frame.call.predicate, frame.call.arguments, null);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Helper method to invoke a custom predicate
      *
      * @param statement the statement that is being evaluated
+     * @param stack     the rules being evaluated
+     * @return the result of the statement, or null if it invokes a rule that was pushed onto the stack
      * @throws IllegalArgumentException
      */
-    private void handleDatabase(Statement statement) {
-        if (!database.containsKey(statement.predicate)) {
-            throw new IllegalArgumentException(String.format("%s is not a predicate", statement.predicate));
+    private Result invoke(Statement statement, RuleStack stack) {
+        if (memo != null) {
+            Result remembered = memo.lookup(statement.predicate, statement.arguments);
+            if (remembered != null) {
+                return remembered;
+            }
+            memo.begin();
+            memo.predicateRead(statement.predicate);
         }
+        Result result;
+        try {
+            // Statements are resolved on first use, and again only if a table was taken out or replaced since
+            int tableVersion = TABLE_VERSION.get();
+            if (statement.facts == null || statement.factsVersion != tableVersion) {
+                statement.facts = database.get(statement.predicate);
+                statement.factsVersion = tableVersion;
+                if (statement.facts == null) {
+                    throw new IllegalArgumentException(String.format("%s is not a predicate", statement.predicate));
+                }
+            }
 
-        HashMap<List<Token>, Predicate> argumentMap = database.get(statement.predicate);
-        if (argumentMap.containsKey(statement.arguments)) {
+            HashMap<List<Token>, Predicate> argumentMap = statement.facts;
             Predicate predicate = argumentMap.get(statement.arguments);
-            if (!predicate.evaluations.isEmpty()) {
-                analyze(predicate.evaluations);
-                boolean allTrue = true;
-                for (Statement evaluated : predicate.evaluations) {
-                    if (evaluated.result == null || !evaluated.result.isTrue()) {
-                        allTrue = false;
-                        break;
+            if (predicate != null) {
+                if (!predicate.evaluations.isEmpty()) {
+                    // Predicates that were not defined through cmavo are compiled on their first invocation
+                    if (predicate.body == null) {
+                        predicate.setBody(compile(predicate.evaluations));
+                    }
+                    if (stack.contains(predicate)) {
+                        throw new IllegalArgumentException(String.format("%s invokes itself with arguments %s", statement.predicate, statement.arguments));
+                    }
+                    if (stack.size() >= maxDepth) {
+                        throw new IllegalArgumentException(String.format("Evaluation of %s went over the limit of %d nested rules", statement.predicate, maxDepth));
                     }
+                    // The memo keeps recording for this rule until it is popped
+                    stack.push(new RuleStack.Frame(statement, predicate, predicate.body));
+                    return null;
                 }
-                statement.setResult(new Result(allTrue));
+                result = Result.TRUE;
+            } else if (columns.containsKey(statement.predicate) && columns.get(statement.predicate).contains(statement.arguments)) {
+                result = Result.TRUE;
             } else {
-                statement.setResult(new Result(true));
+                Token resultToken = findMatchingArgument(statement);
+                // Assuming resultToken.value is a List, not a simple value.
+                if (resultToken.value instanceof List && !((List<?>) resultToken.value).isEmpty()) {
+                    // If placeholders were found, set result as true.
+                    result = new Result(resultToken.value);
+                } else {
+                    // No placeholders or matches found.
+                    result = Result.FALSE;
+                }
             }
-        } else {
-            Token resultToken = findMatchingArgument(statement);
-            // Assuming resultToken.value is a List, not a simple value.
-            if (resultToken.value instanceof List && !((List<?>) resultToken.value).isEmpty()) {
-                // If placeholders were found, set result as true.
-                statement.setResult(new Result(resultToken.value));
-            } else {
-                // No placeholders or matches found.
-                statement.setResult(new Result(false));
+        } catch (RuntimeException e) {
+            if (memo != null) {
+                memo.end(statement.predicate, statement.arguments, null);
             }
+            throw e;
+        }
+        if (memo != null) {
+            memo.end(statement.predicate, statement.arguments, result);
+        }
+        return result;
+    }
+
+    /**
+     * Compiles the evaluations of a predicate into steps bound to their handlers, so invoking the predicate does not
+     * dispatch on each statement again. The steps do not hold on to an analyzer, so analyzers sharing the database
+     * can run them against their own environments.
+     *
+     * @param evaluations the statements that define the predicate
+     * @return one step per statement
+     */
+    private static RuleStep[] compile(List<Statement> evaluations) {
+        RuleStep[] steps = new RuleStep[evaluations.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = compileStep(evaluations.get(i));
+        }
+        return steps;
+    }
+
+    /**
+     * Helper method to bind a statement to its handler
+     *
+     * @param statement the statement to compile
+     * @return step that evaluates the statement
+     */
+    private static RuleStep compileStep(Statement statement) {
+        switch (statement.opcode) {
+            case FATCI:
+                return (analyzer, stack) -> analyzer.handleFatci(statement);
+            case SUMJI:
+                return (analyzer, stack) -> analyzer.handleSumji(statement);
+            case VUJNI:
+                return (analyzer, stack) -> analyzer.handleVujni(statement);
+            case DUNLI:
+                return (analyzer, stack) -> analyzer.handleDunli(statement);
+            case STENI:
+                return (analyzer, stack) -> analyzer.handleSteni(statement);
+            case STEKO:
+                return (analyzer, stack) -> analyzer.handleSteko(statement);
+            case CMAVO:
+                return (analyzer, stack) -> analyzer.handleCmavo(statement);
+            default:
+                // Other rules are pushed onto the stack instead of being evaluated recursively
+                return (analyzer, stack) -> analyzer.invoke(statement, stack);
         }
     }
 
@@ -106,9 +558,10 @@ class Analyzer {
      * Handles statements with predicate 'fatci'
      *
      * @param statement the statement that is being evaluated
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleFatci(Statement statement) throws IllegalArgumentException {
+    private Result handleFatci(Statement statement) throws IllegalArgumentException {
         // Check for exactly one argument
         if (statement.arguments.size() != 1) {
             throw new IllegalArgumentException("Predicate 'fatci' requires exactly one argument.");
@@ -118,14 +571,46 @@ class Analyzer {
 
         // Checks for valid input
         if (argument.type == Token.Type.NAME || argument.type == Token.Type.PREDICATE) {
-            Predicate predicate = new Predicate((String) argument.value);
-            HashMap<List<Token>, Predicate> innerMap = new HashMap<>();
-            innerMap.put(statement.arguments, predicate);
-            database.put((String) argument.value, innerMap);
+            Symbol name = (Symbol) argument.value;
+            Predicate predicate = new Predicate(name);
+            // A new table replaces the old one, which is kept as it is to be put back if the line is rolled back.
+            // Statements that resolved the old table look the new one up, as the version of the tables moves on.
+            HashMap<List<Token>, Predicate> facts = new HashMap<>();
+            facts.put(statement.arguments, predicate);
+            FactIndex index = new FactIndex();
+            index.add(statement.arguments);
+            HashMap<List<Token>, Predicate> oldFacts = database.put(name, facts);
+            FactIndex oldIndex = indexes.put(name, index);
+            FactColumns oldColumns = columns.remove(name);
+            TABLE_VERSION.incrementAndGet();
+            undoLog.add(() -> {
+                if (oldFacts == null) {
+                    database.remove(name);
+                } else {
+                    database.put(name, oldFacts);
+                }
+                // An index the old table did not have yet is built again when it is needed
+                if (oldIndex == null) {
+                    indexes.remove(name);
+                } else {
+                    indexes.put(name, oldIndex);
+                }
+                if (oldColumns != null) {
+                    columns.put(name, oldColumns);
+                }
+                TABLE_VERSION.incrementAndGet();
+            });
+            if (memo != null) {
+                memo.predicateWritten(name);
+            }
+            recordFact(name, statement.arguments, predicate);
+            if (journal != null) {
+                journal.replaceFacts(name, statement.arguments, predicate);
+            }
         }
 
         // Update the statement's result to reflect successful assertion
-        statement.setResult(new Result(true));
+        return Result.TRUE;
     }
 
 
@@ -133,327 +618,187 @@ class Analyzer {
      * Handles statements with predicate 'sumji'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleSumji(Statement statement) throws IllegalArgumentException {
+    private Result handleSumji(Statement statement) throws IllegalArgumentException {
         // Check for exactly three argument
         if (statement.arguments.size() != 3) {
             throw new IllegalArgumentException("Predicate 'sumji' requires exactly three arguments.");
         }
-
-        // Get the arguments
-        Token firstArg = statement.arguments.get(0);
-        Token secondArg = statement.arguments.get(1);
-        Token thirdArg = statement.arguments.get(2);
-
-        // If the type of the first argument is a number
-        if (firstArg.type == Token.Type.NUMBER) {
-            // Case when the third argument is a name
-            if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-                // If the program environment contains the third argument
-                if (environment.containsKey(thirdArg.value)) {
-                    // Call the helper method to evaluate the arguments
-                    performOperation(firstArg, secondArg, thirdArg, statement);
-                    // If its not already in the environment, we can assign this variable to a value
-                } else {
-                    // Call the helper method to assign the variable
-                    assignVariable(firstArg, thirdArg, secondArg, statement, false);
-                }
-                // Case when the second argument is a name
-            } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-                // If the program environment contains the second argument
-                if (environment.containsKey(secondArg.value)) {
-                    // Call the helper method to evaluate the arguments
-                    performOperation(firstArg, secondArg, thirdArg, statement);
-                    // If its not already in the environment, we can assign this variable to a value
-                } else {
-                    // Call the helper method to assign the variable
-                    assignVariable(firstArg, secondArg, thirdArg, statement, false);
-                }
-                // Case when both the second and third argument is a name
-            } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-                // Case where all numbers
-                if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                    // Call the helper method to evaluate the arguments
-                    performOperation(firstArg, secondArg, thirdArg, statement);
-                    // Case where secondArg is not in the environment, thus assigning the variable
-                } else if (!environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                    // Call the helper method to assign the variable
-                    assignVariable(firstArg, secondArg, thirdArg, statement, false);
-                    // Case where the thirdArg is not in the environment, and thus assigning the variable
-                } else if (environment.containsKey(secondArg.value) && !environment.containsKey(thirdArg.value)) {
-                    // Call the helper method to assign the variable
-                    assignVariable(firstArg, thirdArg, secondArg, statement, false);
-                } else {
-                    throw new IllegalArgumentException("Statement is not a valid input string");
-                }
-            } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                // Call the helper method to evaluate the arguments
-                performOperation(firstArg, secondArg, thirdArg, statement);
-            }
-        } else if (firstArg.type == Token.Type.NAME) {
-            // Check if there is a variable stored with firstArg
-            if (environment.containsKey(firstArg.value)) {
-                // Case when the third argument is a name
-                if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-                    // If the program environment contains the third argument
-                    if (environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to evaluate the arguments
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        // Call the helper method to assign the variable
-                        assignVariable(firstArg, thirdArg, secondArg, statement, false);
-                    }
-                    // Case when the second argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-                    // If the program environment contains the second argument
-                    if (environment.containsKey(secondArg.value)) {
-                        // Call the helper method to evaluate the arguments
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        // Call the helper method to assign the variable
-                        assignVariable(firstArg, secondArg, thirdArg, statement, false);
-                    }
-                    // Case when both the second and third argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-                    // Case where all numbers
-                    if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to evaluate the arguments
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-                        // Case where secondArg is not in the environment, thus assigning the variable
-                    } else if (!environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to assign the variable
-                        assignVariable(firstArg, secondArg, thirdArg, statement, false);
-                        // Case where the thirdArg is not in the environment, and thus assigning the variable
-                    } else if (environment.containsKey(secondArg.value) && !environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to assign the variable
-                        assignVariable(firstArg, thirdArg, secondArg, statement, false);
-                    } else {
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-                } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                    // Call the helper method to evaluate the arguments
-                    performOperation(firstArg, secondArg, thirdArg, statement);
-                }
-                // Check if there is no variable called firstArg
-            } else {
-                // Case when the third argument is a name
-                if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-                    // If the program environment contains the third argument
-                    if (environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to assign the variable
-                        assignVariableAdd(firstArg, secondArg, thirdArg, statement);
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        // Throw an error, meaning two arguments are unknown
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-                    // Case when the second argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-                    // If the program environment contains the second argument
-                    if (environment.containsKey(secondArg.value)) {
-                        // Call the helper method to assign the variable
-                        assignVariableAdd(firstArg, secondArg, thirdArg, statement);
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        // Throw an error, meaning two arguments are unknown
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-                    // Case when both the second and third argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-                    // Case where all numbers
-                    if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to assign the arguments
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-                        // Case where secondArg is not in the environment, thus assigning the variable
-                    } else if (!environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        // Call the helper method to assign the variable
-                        assignVariableAdd(firstArg, secondArg, thirdArg, statement);
-                        // Case where the thirdArg is not in the environment, and thus assigning the variable
-                    } else if (environment.containsKey(secondArg.value) && !environment.containsKey(thirdArg.value)) {
-                        // Throw an error, meaning two arguments are unknown
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-                } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                    // Call the helper method to assign the variable
-                    assignVariableAdd(firstArg, secondArg, thirdArg, statement);
-                }
-            }
-        } else {
-            throw new IllegalArgumentException("Wrong argument type for 'sumji.'");
-        }
+        return solve(Relation.sumji(statement.arguments), false);
     }
 
     /**
      * Handles statements with predicate 'vujni'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleVujni(Statement statement) throws IllegalArgumentException {
+    private Result handleVujni(Statement statement) throws IllegalArgumentException {
         // Check for exactly three argument
         if (statement.arguments.size() != 3) {
             throw new IllegalArgumentException("Predicate 'vujni' requires exactly three arguments.");
         }
+        return solve(Relation.vujni(statement.arguments), false);
+    }
 
-        // Get the arguments
-        Token firstArg = statement.arguments.get(0);
-        Token secondArg = statement.arguments.get(1);
-        Token thirdArg = statement.arguments.get(2);
-
-        // If the type of the first argument is a number
-        if (firstArg.type == Token.Type.NUMBER) {
-
-            // Case when the third argument is a name
-            if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-
-                if (environment.containsKey(thirdArg.value)) {
-                    performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
-                } else {
-                    assignVariable(firstArg, thirdArg, secondArg, statement, true);
+    /**
+     * Checks a relation, or solves it for its only unknown name. A relation with more than one unknown name is
+     * deferred, and solved once enough of its names are bound.
+     *
+     * @param relation the relation to solve
+     * @param woken    true if the relation was deferred before and one of its names has just been bound
+     * @return the result of the statement
+     * @throws IllegalArgumentException if an argument is not a number or name, or a known name is not a number
+     */
+    private Result solve(Relation relation, boolean woken) {
+        // Each argument is read once, along with its kind
+        long total = readOperand(relation.total);
+        long part1 = readOperand(relation.part1);
+        long part2 = readOperand(relation.part2);
+        int value;
+        Token unknown;
+        switch (Relation.action(total, part1, part2)) {
+            case Relation.CHECK:
+                boolean holds = numberOf(total, relation.total) == numberOf(part1, relation.part1) + numberOf(part2, relation.part2);
+                // A deferred relation that turns out false contradicts the bindings that completed it
+                if (woken && !holds) {
+                    throw new IllegalArgumentException(String.format("Relation %s does not hold", relation));
                 }
-
-                // Case when the second argument is a name
-            } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-
-                // If the program environment contains the second argument
-                if (environment.containsKey(secondArg.value)) {
-                    performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
-                } else {
-                    assignVariableAdd(secondArg, firstArg, thirdArg, statement);
+                return Result.of(holds);
+            case Relation.SOLVE_TOTAL:
+                unknown = relation.total;
+                value = numberOf(part1, relation.part1) + numberOf(part2, relation.part2);
+                break;
+            case Relation.SOLVE_PART1:
+                unknown = relation.part1;
+                value = numberOf(total, relation.total) - numberOf(part2, relation.part2);
+                break;
+            case Relation.SOLVE_PART2:
+                unknown = relation.part2;
+                value = numberOf(total, relation.total) - numberOf(part1, relation.part1);
+                break;
+            case Relation.DEFER:
+                // A woken relation is still waiting on its other unknown names
+                if (!woken) {
+                    defer(relation, new long[]{total, part1, part2});
                 }
+                return new Result(String.format("Relation %s is pending", relation));
+            default:
+                throw new IllegalArgumentException(String.format("Wrong argument type for '%s.'", relation.predicate));
+        }
+        // Assign the value to the unknown argument
+        bindNumber(unknown.value, value);
+        return new Result(unknown.value + " has been assigned to " + value);
+    }
 
-                // Case when both the second and third argument are a name
-            } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-
-                // Case theres a variable named with the values of arg2 and arg3
-                if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                    performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
-                    // Case where secondArg is not in the environment, thus assigning the variable
-                } else if (!environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                    assignVariableAdd(secondArg, firstArg, thirdArg, statement);
-
-                    // Case where the thirdArg is not in the environment, and thus assigning the variable
-                } else if (environment.containsKey(secondArg.value) && !environment.containsKey(thirdArg.value)) {
-                    assignVariable(firstArg, thirdArg, secondArg, statement, true);
+    /**
+     * Helper method to read an argument of a relation
+     *
+     * @param argument the argument
+     * @return the kind of the argument packed with its number
+     */
+    private long readOperand(Token argument) {
+        if (argument.type == Token.Type.NUMBER) {
+            return Relation.operand(Relation.KNOWN, numberOf(argument));
+        }
+        if (argument.type != Token.Type.NAME) {
+            return Relation.operand(Relation.OTHER, 0);
+        }
+        Object key = argument.value;
+        if (memo != null) {
+            memo.nameRead(key);
+        }
+        int value = numbers.get(key, Integer.MIN_VALUE);
+        if (value != Integer.MIN_VALUE || numbers.containsKey(key)) {
+            return Relation.operand(Relation.KNOWN, value);
+        }
+        return Relation.operand(environment.containsKey(key) ? Relation.NOT_A_NUMBER : Relation.UNKNOWN, 0);
+    }
 
-                    // Throw an error since there are multiple unknown variables
-                } else {
-                    throw new IllegalArgumentException("Statement is not a valid input string");
-                }
+    /**
+     * Helper method to get the number of a known operand
+     *
+     * @param operand  the operand
+     * @param argument the argument the operand was read from
+     * @return the number
+     * @throws IllegalArgumentException if the argument is a name bound to something other than a number
+     */
+    private static int numberOf(long operand, Token argument) {
+        if (Relation.kindOf(operand) == Relation.NOT_A_NUMBER) {
+            throw new IllegalArgumentException("Variable '" + argument.value + "' does not contain a numeric value.");
+        }
+        return Relation.valueOf(operand);
+    }
 
-                // Check if arg2 and arg3 are numbers
-            } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                performOperationSubtract(firstArg, secondArg, thirdArg, statement);
+    /**
+     * Helper method to set a relation aside until one of its unknown names is bound
+     *
+     * @param relation the relation with more than one unknown name
+     * @param operands the operands of the total, part1, and part2
+     */
+    private void defer(Relation relation, long[] operands) {
+        Token[] arguments = {relation.total, relation.part1, relation.part2};
+        // The known arguments have to be numbers already
+        for (int i = 0; i < arguments.length; i++) {
+            if (Relation.kindOf(operands[i]) != Relation.UNKNOWN) {
+                numberOf(operands[i], arguments[i]);
             }
-
-            // Case where the first argument is a name
-        } else if (firstArg.type == Token.Type.NAME) {
-            // Check if there is a variable stored with firstArg
-            if (environment.containsKey(firstArg.value)) {
-
-                // Case when the third argument is a name
-                if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-
-                    // If the program environment contains the third argument
-                    if (environment.containsKey(thirdArg.value)) {
-                        performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        assignVariable(firstArg, thirdArg, secondArg, statement, true);
-                    }
-
-                    // Case when the second argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-
-                    // If the program environment contains the second argument
-                    if (environment.containsKey(secondArg.value)) {
-                        performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
-                        // If its not already in the environment, we can assign this variable to a value
-                    } else {
-                        assignVariableAdd(secondArg, firstArg, thirdArg, statement);
-                    }
-
-                    // Case when both the second and third argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-
-                    // Case where the environment contains arg2 and arg3
-                    if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-
-                        // Case where secondArg is not in the environment, thus assigning the variable
-                    } else if (!environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        assignVariableAdd(firstArg, secondArg, thirdArg, statement);
-
-                        // Case where the thirdArg is not in the environment, and thus assigning the variable
-                    } else if (environment.containsKey(secondArg.value) && !environment.containsKey(thirdArg.value)) {
-                        assignVariable(firstArg, thirdArg, secondArg, statement, true);
-
-                        // Throw error because multiple unknown variables
-                    } else {
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-
-                    // Case where arg2 and arg3 are numbers
-                } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                    performOperationSubtract(firstArg, secondArg, thirdArg, statement);
-
+        }
+        List<Object> deferredOn = journal == null || !journalEnvironment ? null : new ArrayList<>(3);
+        for (int i = 0; i < arguments.length; i++) {
+            if (Relation.kindOf(operands[i]) == Relation.UNKNOWN) {
+                List<Relation> waiting = pending.get(arguments[i].value);
+                if (waiting != null && waiting.contains(relation)) {
+                    continue;
                 }
-
-                // Case where  there is no variable called firstArg
-            } else {
-
-                // Case when the third argument is a name
-                if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NAME) {
-
-                    // If the program environment contains the third argument
-                    if (environment.containsKey(thirdArg.value)) {
-                        assignVariable(secondArg, firstArg, thirdArg, statement, false);
-
-                        // Throw error because multiple unknown variables
-                    } else {
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-
-                    // Case when the second argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NUMBER) {
-
-                    // If the program environment contains the second argument
-                    if (environment.containsKey(secondArg.value)) {
-                        assignVariable(secondArg, firstArg, thirdArg, statement, false);
-
-                        // Throw error because multiple unknown variables
-                    } else {
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-
-                    // Case when both the second and third argument is a name
-                } else if (secondArg.type == Token.Type.NAME && thirdArg.type == Token.Type.NAME) {
-
-                    // Case where the environment contains arg2 and arg3
-                    if (environment.containsKey(secondArg.value) && environment.containsKey(thirdArg.value)) {
-                        performOperation(firstArg, secondArg, thirdArg, statement);
-
-                        // Case arg2 or 1rg3, or both, are not in the environement
-                    } else {
-                        throw new IllegalArgumentException("Statement is not a valid input string");
-                    }
-
-                    // Case where arg2 and arg3 are numbers and arg1 is a name
-                } else if (secondArg.type == Token.Type.NUMBER && thirdArg.type == Token.Type.NUMBER) {
-                    // Call the helper method to assign the variable
-                    assignVariable(secondArg, firstArg, thirdArg, statement, false);
+                List<Relation> updated = waiting == null ? new ArrayList<>() : new ArrayList<>(waiting);
+                updated.add(relation);
+                pending = pending.put(arguments[i].value, updated);
+                if (deferredOn != null) {
+                    deferredOn.add(arguments[i].value);
+                }
+                // Remembered results must not skip a statement that defers a relation
+                if (memo != null) {
+                    memo.nameWritten(arguments[i].value);
                 }
             }
-        } else {
-            throw new IllegalArgumentException("Wrong argument type for 'vujni.'");
+        }
+        if (deferredOn != null && !deferredOn.isEmpty()) {
+            journal.defer(relation, deferredOn);
+        }
+    }
+
+    /**
+     * Helper method to solve the relations waiting on a name that was just bound, along with any relations those
+     * solutions complete in turn
+     *
+     * @param key the name that was bound
+     */
+    private void wake(Object key) {
+        List<Relation> waiting = pending.get(key);
+        if (waiting == null) {
+            return;
+        }
+        pending = pending.remove(key);
+        if (journal != null && journalEnvironment) {
+            journal.wake(key);
+        }
+        woken.addAll(waiting);
+        // Relations solved while propagating only queue what they wake, so long chains do not nest
+        if (propagating) {
+            return;
+        }
+        propagating = true;
+        try {
+            while (!woken.isEmpty()) {
+                solve(woken.poll(), true);
+            }
+        } finally {
+            propagating = false;
+            woken.clear();
         }
     }
 
@@ -461,9 +806,10 @@ class Analyzer {
      * Handles statements with predicate 'dunli'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleDunli(Statement statement) throws IllegalArgumentException {
+    private Result handleDunli(Statement statement) throws IllegalArgumentException {
         // Check for exactly two arguments
         if (statement.arguments.size() != 2) {
             throw new IllegalArgumentException("Predicate 'dunli' requires exactly two arguments.");
@@ -479,50 +825,46 @@ class Analyzer {
         // Initialize a variable to hold the result message or boolean value
         Object result;
 
-        List<Object> arg1List = new ArrayList<>();
-        List<Object> arg2List = new ArrayList<>();
-
         // Determine if an assignment is needed and perform comparisons
-        if (arg1.type == Token.Type.NAME && !environment.containsKey(arg1.value)) {
-            if (arg2Value instanceof String || arg2Value instanceof Integer) {
+        if (arg1.type == Token.Type.NAME && !isBound(arg1.value)) {
+            if (arg2Value instanceof Symbol || arg2Value instanceof Integer) {
                 // Assign arg2's value to arg1 in the environment
-                environment.put(arg1.value, arg2Value);
+                bind(arg1.value, arg2Value);
                 result = String.format("Value '%s' has been assigned to '%s'.", arg2Value, arg1.value);
             } else if (arg2Value instanceof List<?>) {
-                addAllNestedLists(arg2List, arg2Value);
+                List<Object> list = toListValue(arg2Value);
                 // Assign arg2's value to arg1 in the environment
-                environment.put(arg1.value, arg2List);
-                result = String.format("List '%s' has been assigned to '%s'.", arg2List, arg1.value);
+                bind(arg1.value, list);
+                result = String.format("List '%s' has been assigned to '%s'.", list, arg1.value);
             } else {
                 result = String.format("'%s' is not a valid value to be assigned to '%s'.", arg2Value, arg1.value);
             }
-        } else if (arg2.type == Token.Type.NAME && !environment.containsKey(arg2.value)) {
-            if (arg1Value instanceof String || arg1Value instanceof Integer) {
+        } else if (arg2.type == Token.Type.NAME && !isBound(arg2.value)) {
+            if (arg1Value instanceof Symbol || arg1Value instanceof Integer) {
                 // Assign arg2's value to arg1 in the environment
-                environment.put(arg2.value, arg1Value);
+                bind(arg2.value, arg1Value);
                 result = String.format("Value '%s' has been assigned to '%s'.", arg1Value, arg2.value);
             } else if (arg1Value instanceof List<?>) {
-                addAllNestedLists(arg1List, arg1Value);
+                List<Object> list = toListValue(arg1Value);
                 // Assign arg2's value to arg1 in the environment
-                environment.put(arg2.value, arg1List);
-                result = String.format("List '%s' has been assigned to '%s'.", arg1List, arg2.value);
+                bind(arg2.value, list);
+                result = String.format("List '%s' has been assigned to '%s'.", list, arg2.value);
             } else {
                 result = String.format("'%s' is not a valid value to be assigned to '%s'.", arg1Value, arg2.value);
             }
-        } else if ((arg1Value instanceof Integer && arg2Value instanceof Integer) || (arg1Value instanceof String && arg2Value instanceof String)) {
+        } else if ((arg1Value instanceof Integer && arg2Value instanceof Integer) || (arg1Value instanceof Symbol && arg2Value instanceof Symbol)) {
             // Direct comparison for integers, strings, or lists
             result = arg1Value.equals(arg2Value);
         } else if ((arg1Value instanceof List && arg2Value instanceof List)) {
-            addAllNestedLists(arg1List, arg1Value);
-            addAllNestedLists(arg2List, arg2Value);
-            result = arg1List.equals(arg2List);
+            // Equal cons lists are the same object and number lists compare as arrays, so neither is walked cell by cell
+            result = toListValue(arg1Value).equals(toListValue(arg2Value));
         } else {
             // Incompatible types or undefined variables result in false
             result = false;
         }
 
         // Set the result of the statement based on the outcome
-        statement.setResult(new Result(result));
+        return new Result(result);
     }
 
 
@@ -531,9 +873,10 @@ class Analyzer {
      * Handles statements with predicate 'steni'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleSteni(Statement statement) throws IllegalArgumentException {
+    private Result handleSteni(Statement statement) throws IllegalArgumentException {
         // The steni predicate expects no arguments to follow the keyword itself for variable assignment
         if (statement.arguments.size() != 1) {
             throw new IllegalArgumentException("Predicate 'steni' requires exactly one argument.");
@@ -546,19 +889,20 @@ class Analyzer {
         }
 
         // Assign an empty list to the variable in the environment
-        environment.put(argument.value, new ArrayList<>());
+        bind(argument.value, ConsList.empty());
 
         // Since 'steni' is used to define an empty list, we consider its execution successful
-        statement.setResult(new Result(String.format("%s has been assigned to an empty list", argument.value)));
+        return new Result(String.format("%s has been assigned to an empty list", argument.value));
     }
 
     /**
      * Handles statements with predicate 'steko'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleSteko(Statement statement) {
+    private Result handleSteko(Statement statement) {
         if (statement.arguments.size() < 2 || statement.arguments.size() > 3) {
             throw new IllegalArgumentException("Predicate 'steko' requires two or three arguments.");
         }
@@ -568,44 +912,51 @@ class Analyzer {
             throw new IllegalArgumentException("Predicate 'steko' requires the first argument to be a name.");
         }
 
-        Object head = environment.containsKey(statement.arguments.get(1).value)
+        Object head = isBound(statement.arguments.get(1).value)
                 ? getArgumentValue(statement.arguments.get(1))
                 : statement.arguments.get(1).value;
 
-        List<Object> list = new ArrayList<>();
-
-        // Add head to the list
-        if (head instanceof List) {
-            addAllNestedLists(list, head);
-        } else {
-            list.add(head);
-        }
-
-
-        // If there is a third argument, process it as the tail of the list
+        // If there is a third argument, it is the tail of the list, either a list or a name bound to one
+        List<Object> tail = ConsList.empty();
         if (statement.arguments.size() == 3) {
             Token thirdArgument = statement.arguments.get(2);
-            if (thirdArgument.value instanceof List) {
-                addAllNestedLists(list, thirdArgument.value);
+            Object tailValue = thirdArgument.type == Token.Type.NAME && isBound(thirdArgument.value)
+                    ? lookup(thirdArgument.value)
+                    : thirdArgument.value;
+            if (tailValue instanceof List) {
+                tail = toListValue(tailValue);
             } else {
                 throw new IllegalArgumentException("Predicate 'steko' requires the third argument to be a list.");
             }
         }
 
+        // Put the head in front of the tail, which is shared rather than copied
+        List<Object> list = tail;
+        if (head instanceof List) {
+            List<Object> elements = new ArrayList<>();
+            addAllNestedLists(elements, head);
+            for (int i = elements.size() - 1; i >= 0; i--) {
+                list = prependValue(elements.get(i), list);
+            }
+        } else {
+            list = prependValue(head, tail);
+        }
+
         // Assign the constructed list to the variable in the environment
-        environment.put(listName.value.toString(), list);
+        bind(listName.value, list);
 
         // Set the statement result
-        statement.setResult(new Result(list));
+        return new Result(list);
     }
 
     /**
      * Handles statements with predicate 'cmavo'
      *
      * @param statement the statement top analyze
+     * @return the result of the statement
      * @throws IllegalArgumentException
      */
-    private void handleCmavo(Statement statement) throws IllegalArgumentException {
+    private Result handleCmavo(Statement statement) throws IllegalArgumentException {
         // Check that cmavo has exactly two or three arguments.
         if (statement.arguments.size() < 2 || statement.arguments.size() > 3) {
             throw new IllegalArgumentException("Predicate 'cmavo' requires exactly two or three arguments.");
@@ -623,7 +974,7 @@ class Analyzer {
             throw new IllegalArgumentException(String.format("%s must be a valid name or valid lists of name", arg2.value));
         }
 
-        Predicate predicate = new Predicate((String) arg1.value);
+        Predicate predicate = new Predicate((Symbol) arg1.value);
 
         List<Token> listOfArgs = new ArrayList<>();
         Object arg2Value = getArgumentValue(arg2);
@@ -673,11 +1024,11 @@ class Analyzer {
                  List<List<Token>> listOfLists = (List<List<Token>>) arg3.value; // Cast to the correct type
                  List<Statement> statements = new ArrayList<>();
                  List<Token> arguments = new ArrayList<>();
-                 String predicateForStatement = null;
+                 Symbol predicateForStatement = null;
                  for (List<Token> sublist : listOfLists) {
                      for (int i = 0; i < sublist.size(); i++) {
                          if (sublist.get(i).type == Token.Type.PREDICATE) {
-                             predicateForStatement = (String) sublist.get(i).value;
+                             predicateForStatement = (Symbol) sublist.get(i).value;
                          } else if (sublist.get(i).type == Token.Type.NAME) {
                              arguments.add(sublist.get(i));
                          } else {
@@ -694,21 +1045,36 @@ class Analyzer {
                  }
                  predicate.setEvaluations(statements);
              } else {
-                 Statement newStatement = new Statement((String) arg3.value, new ArrayList<>());
+                 Statement newStatement = new Statement((Symbol) arg3.value, new ArrayList<>());
                  List<Statement> statements = new ArrayList<>();
                  statements.add(newStatement);
                  predicate.setEvaluations(statements);
              }
+             // Compile the evaluations once now instead of interpreting them on every invocation
+             predicate.setBody(compile(predicate.evaluations));
          }
 
-        HashMap<List<Token>, Predicate> innerMap = database.get(arg1.value);
-        if (innerMap == null) {
-            innerMap = new HashMap<>();
-            database.put((String) arg1.value, innerMap);
+        Symbol name = (Symbol) arg1.value;
+        HashMap<List<Token>, Predicate> innerMap = tableFor(name);
+        if (memo != null) {
+            memo.predicateWritten(name);
         }
-        innerMap.put(listOfArgs, predicate);
-        database.put((String) arg1.value, innerMap);
-        statement.setResult(new Result(String.format("%s has been created as a new predicate", statement.arguments.get(0))));
+        Predicate previous = innerMap.put(listOfArgs, predicate);
+        if (previous == null) {
+            // Only a new set of arguments has to be indexed, the index is rebuilt if the fact is taken back out
+            indexFor(name).add(listOfArgs);
+            undoLog.add(() -> {
+                innerMap.remove(listOfArgs);
+                indexes.remove(name);
+            });
+        } else {
+            undoLog.add(() -> innerMap.put(listOfArgs, previous));
+        }
+        recordFact(name, listOfArgs, predicate);
+        if (journal != null) {
+            journal.putFact(name, listOfArgs, predicate);
+        }
+        return new Result(String.format("%s has been created as a new predicate", statement.arguments.get(0)));
     }
 
     /**
@@ -716,7 +1082,7 @@ class Analyzer {
      * @param targetList list where you want to add all items.
      * @param element current item to be processed
      */
-    private void addAllNestedLists(List<Object> targetList, Object element) {
+    private static void addAllNestedLists(List<Object> targetList, Object element) {
         if (element instanceof List) {
             // Recursively process each element within the list
             for (Object nestedElement : (List<?>) element) {
@@ -731,6 +1097,54 @@ class Analyzer {
         }
     }
 
+    /**
+     * Helper method to get a list as a list value, flattening nested lists and tokens into their values. Lists of
+     * numbers only are kept as an IntList, any other list as a ConsList.
+     *
+     * @param value the list
+     * @return the list value, which is the list itself if it already is one
+     */
+    private static List<Object> toListValue(Object value) {
+        // List values can be shared as they are
+        if (value instanceof IntList || value instanceof ConsList list && list.isFlat()) {
+            @SuppressWarnings("unchecked")
+            List<Object> shared = (List<Object>) value;
+            return shared;
+        }
+        List<Object> elements = new ArrayList<>();
+        addAllNestedLists(elements, value);
+        int[] numbers = new int[elements.size()];
+        for (int i = 0; i < numbers.length; i++) {
+            if (!(elements.get(i) instanceof Integer number)) {
+                return ConsList.of(elements, ConsList.empty());
+            }
+            numbers[i] = number;
+        }
+        return numbers.length == 0 ? ConsList.empty() : IntList.of(numbers);
+    }
+
+    /**
+     * Helper method to put a value in front of a list value, keeping lists of numbers only as an IntList
+     *
+     * @param element the new first element
+     * @param tail    the list value it is put in front of
+     * @return the new list value, sharing the tail where it can
+     */
+    private static List<Object> prependValue(Object element, List<Object> tail) {
+        if (element instanceof Integer number) {
+            if (tail instanceof IntList numbers) {
+                return numbers.prepend(number);
+            }
+            if (tail.isEmpty()) {
+                return IntList.of(number);
+            }
+        } else if (tail instanceof IntList) {
+            // The first element that is not a number turns the list back into a generic one
+            return ConsList.of(tail, ConsList.empty()).prepend(element);
+        }
+        return ((ConsList) tail).prepend(element);
+    }
+
     /**
      * Returns the result of the last statement after all have been analyzed.
      *
@@ -746,140 +1160,451 @@ class Analyzer {
 
     /**
      * Prints the current state of the environment.
+     *
+     * @param out where to print
      */
-    public void printEnvironment() {
-        System.out.println("Current Environment:");
-        environment.forEach((key, value) -> System.out.println(key + ": " + value));
+    public void printEnvironment(PrintStream out) {
+        out.println("Current Environment:");
+        numbers.forEach((key, value) -> out.println(key + ": " + value));
+        environment.forEach((key, value) -> out.println(key + ": " + value));
     }
 
     /**
      * Prints the current state of the datatbase.
+     *
+     * @param out where to print
      */
-    public void printDatabase() {
-        System.out.println("Current Database:");
+    public void printDatabase(PrintStream out) {
+        out.println("Current Database:");
         database.forEach((predicateKey, innerMap) -> {
-            System.out.println(predicateKey + ":");
+            out.println(predicateKey + ":");
             innerMap.forEach((instanceKey, predicate) ->
-                    System.out.println("  " + instanceKey + "=" + predicate));
+                    out.println("  " + instanceKey + "=" + predicate));
+            FactColumns factColumns = columns.get(predicateKey);
+            if (factColumns != null) {
+                factColumns.forEach(instanceKey ->
+                        out.println("  " + instanceKey + "=" + new Predicate(predicateKey, instanceKey, List.of())));
+            }
         });
     }
 
     /**
-     * Helper method to asserts arguments
+     * Passes every binding of the environment to an action, numbers first
      *
-     * @param firstArg  the first argument
-     * @param secondArg the second argument
-     * @param thirdArg  the third argument
-     * @param statement the statement being analyzed
+     * @param action what to do with each name and value
      */
-    private void performOperation(Token firstArg, Token secondArg, Token thirdArg, Statement statement) {
-        // Get the value of the arguments
-        int firstValue = parseArgumentValue(firstArg);
-        int secondArgValue = parseArgumentValue(secondArg);
-        int thirdArgValue = parseArgumentValue(thirdArg);
-        // get sum of two values
-        int sumResult = secondArgValue + thirdArgValue;
-        // Check if the sum matches the first argument
-        if (sumResult == firstValue) {
-            statement.setResult(new Result(true));
-        } else {
-            statement.setResult(new Result(false));
+    void forEachBinding(BiConsumer<Object, Object> action) {
+        numbers.forEach(action::accept);
+        environment.forEach(action);
+    }
+
+    /**
+     * Gets the deferred relations
+     *
+     * @return the relations waiting on each unknown name
+     */
+    Map<Object, List<Relation>> pendingRelations() {
+        Map<Object, List<Relation>> relations = new LinkedHashMap<>();
+        pending.forEach(relations::put);
+        return relations;
+    }
+
+    /**
+     * Puts a fact table read from a snapshot into the database, replacing any table of the same name. Restoring is
+     * not recorded as a change and cannot be rolled back.
+     *
+     * @param name  the name of the predicate
+     * @param table the facts of the predicate
+     */
+    void restoreTable(Symbol name, HashMap<List<Token>, Predicate> table) {
+        if (database.put(name, table) != null) {
+            TABLE_VERSION.incrementAndGet();
+        }
+        columns.remove(name);
+        // The index is built from the new table when it is first needed
+        indexes.remove(name);
+        if (memo != null) {
+            memo.predicateWritten(name);
         }
     }
 
     /**
-     * Helper method to asserts arguments
+     * Binds a value read from a snapshot to a name, without recording the change or waking deferred relations
      *
-     * @param firstArg  the first argument
-     * @param secondArg the second argument
-     * @param thirdArg  the third argument
-     * @param statement the statement being analyzed
+     * @param key   the name to bind
+     * @param value the value to bind
      */
-    private void performOperationSubtract(Token firstArg, Token secondArg, Token thirdArg, Statement statement) {
-        // Get the value of the arguments
-        int firstValue = parseArgumentValue(firstArg);
-        int secondArgValue = parseArgumentValue(secondArg);
-        int thirdArgValue = parseArgumentValue(thirdArg);
-        // get sum of two values
-        int sumResult = secondArgValue - thirdArgValue;
-        // Check if the sum matches the first argument
-        if (sumResult == firstValue) {
-            statement.setResult(new Result(true));
+    void restoreBinding(Object key, Object value) {
+        if (value instanceof Integer number) {
+            numbers = numbers.put(key, number);
+            environment = environment.remove(key);
         } else {
-            statement.setResult(new Result(false));
+            environment = environment.put(key, value);
+            numbers = numbers.remove(key);
+        }
+        if (memo != null) {
+            memo.nameWritten(key);
+        }
+    }
+
+    /**
+     * Puts a fact read from a snapshot or journal into the database
+     *
+     * @param name      the name of the predicate
+     * @param arguments the arguments of the fact
+     * @param predicate the predicate
+     * @param replace   true to replace the facts of the table, as fatci does
+     */
+    void restoreFact(Symbol name, List<Token> arguments, Predicate predicate, boolean replace) {
+        HashMap<List<Token>, Predicate> table = database.computeIfAbsent(name, key -> new HashMap<>());
+        if (replace) {
+            table.clear();
+            columns.remove(name);
+        }
+        table.put(arguments, predicate);
+        indexes.remove(name);
+        if (memo != null) {
+            memo.predicateWritten(name);
         }
     }
 
     /**
-     * Helper method to assign values if a name variable is not in the environment
+     * Puts facts loaded in bulk into the table of a predicate, creating the table large enough for them if there is
+     * none yet. Each fact is its own predicate without evaluations, as cmavo defines it. The index of the table is
+     * built again by finishLoad. If facts are kept off the heap, they go into the columns of the predicate instead
+     * and the table is left empty. Loading is not recorded as a change and cannot be rolled back.
      *
-     * @param firstArg  the first argument
-     * @param secondArg the second argument
-     * @param thirdArg  the third argument
-     * @param statement the statement being analyzed
+     * @param name     the name of the predicate
+     * @param keys     the arguments of each fact
+     * @param expected how many facts the loading is expected to put into the table in all, to size a new table
      */
-    private void assignVariable(Token firstArg, Token secondArg, Token thirdArg, Statement statement, Boolean isVujni) {
-        // Get the value of the first and third argument
-        int firstValue = parseArgumentValue(firstArg);
-        int thirdArgValue = parseArgumentValue(thirdArg);
-        // Get value to assign to third argument
-        int sumResult = firstValue - thirdArgValue;
-        // Determine if isVujni
-        int result = isVujni ? (sumResult * -1) : sumResult;
-        // Assign the value to the third argument
-        environment.put(secondArg.value, result);
-        // Update the result for the statement
-        statement.setResult(new Result(String.format("%s has been assigned to %s", secondArg.value, result)));
+    void loadFacts(Symbol name, List<List<Token>> keys, int expected) {
+        HashMap<List<Token>, Predicate> table = database.get(name);
+        if (offHeapFacts) {
+            if (table == null) {
+                table = new HashMap<>();
+                database.put(name, table);
+            }
+            FactColumns factColumns = columns.computeIfAbsent(name, key -> new FactColumns());
+            for (List<Token> key : keys) {
+                // A loaded fact replaces one of the table with the same arguments, as it does on the heap
+                if (!table.isEmpty() && table.remove(key) != null) {
+                    indexes.remove(name);
+                }
+                factColumns.add(key);
+            }
+            if (memo != null) {
+                memo.predicateWritten(name);
+            }
+            return;
+        }
+        if (table == null) {
+            table = new HashMap<>(Math.max(16, Math.max(keys.size(), expected) * 4 / 3 + 1));
+            database.put(name, table);
+        }
+        List<Statement> noEvaluations = List.of();
+        for (List<Token> key : keys) {
+            table.put(key, new Predicate(name, key, noEvaluations));
+        }
+        indexes.remove(name);
+        if (memo != null) {
+            memo.predicateWritten(name);
+        }
     }
 
     /**
-     * Helper method to assign values if a name variable is not in the environment
+     * Builds the index of each table facts were loaded into, once all of them are in
      *
-     * @param firstArg  the first argument
-     * @param secondArg the second argument
-     * @param thirdArg  the third argument
-     * @param statement the statement being analyzed
+     * @param names the names of the predicates loaded
      */
-    private void assignVariableAdd(Token firstArg, Token secondArg, Token thirdArg, Statement statement) {
-        // Get the value of the first and third argument
-        int secondArgValue = parseArgumentValue(secondArg);
-        int thirdArgValue = parseArgumentValue(thirdArg);
-        // Get value to assign to third argument
-        int sumResult = secondArgValue + thirdArgValue;
-        // Assign the value to the third argument
-        environment.put(firstArg.value, sumResult);
-        // Update the result for the statement
-        statement.setResult(new Result(String.format("%s has been assigned to %s", firstArg.value, sumResult)));
+    void finishLoad(Collection<Symbol> names) {
+        for (Symbol name : names) {
+            indexFor(name);
+        }
     }
 
     /**
-     * Helper method to parse argument values
+     * Defers relations read from a snapshot on a name
      *
-     * @param argument the value of the argument to get value of
-     * @return the argument value
+     * @param key       the unknown name the relations wait on
+     * @param relations the relations, which are not changed afterwards, or null if none wait on the name
      */
-    private int parseArgumentValue(Token argument) {
-        // If the argument is a number
-        if (argument.type == Token.Type.NUMBER) {
-            // Return a number
-            return Integer.parseInt((String) argument.value);
-            // If the argument is a name
-        } else if (argument.type == Token.Type.NAME) {
-            // Check the environment if a a value at that name is stored
-            Object value = environment.get(argument.value);
-            // Check if its an integer value
-            if (value instanceof Integer) {
-                // Return that integer value
-                return (Integer) value;
-                // otherwise throw an error
-            } else {
-                throw new IllegalArgumentException("Variable '" + argument.value + "' does not contain a numeric value.");
+    void restorePending(Object key, List<Relation> relations) {
+        pending = relations == null ? pending.remove(key) : pending.put(key, relations);
+    }
+
+    /**
+     * Defers one more relation read from a journal on a name
+     *
+     * @param key      the unknown name the relation waits on
+     * @param relation the relation
+     */
+    void restoreDeferred(Object key, Relation relation) {
+        List<Relation> waiting = pending.get(key);
+        List<Relation> updated = waiting == null ? new ArrayList<>() : new ArrayList<>(waiting);
+        updated.add(relation);
+        pending = pending.put(key, updated);
+    }
+
+    /**
+     * Sets the limits on the evaluation of a statement with a user defined predicate
+     *
+     * @param maxDepth most rules that may be evaluating at once, i.e. the depth of the rule stack
+     * @param maxSteps most statements of rule bodies that may be run
+     */
+    public void setEvaluationLimits(int maxDepth, long maxSteps) {
+        this.maxDepth = maxDepth;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Turns the parallel running of independent statements of a line on or off
+     *
+     * @param parallel true to run long runs of independent statements on the common fork-join pool
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Sets how many fact keys a query has to compare before they are scanned in parallel
+     *
+     * @param threshold the fewest keys scanned in parallel, Integer.MAX_VALUE to always scan on one thread
+     */
+    public void setParallelScanThreshold(int threshold) {
+        this.parallelScanThreshold = threshold;
+    }
+
+    /**
+     * Turns the keeping of facts loaded in bulk or restored from a snapshot off the heap on or off
+     *
+     * @param offHeapFacts true to keep facts without evaluations as dictionary-encoded columns in direct buffers
+     */
+    public void setOffHeapFacts(boolean offHeapFacts) {
+        this.offHeapFacts = offHeapFacts;
+    }
+
+    /**
+     * Checks if facts loaded in bulk or restored from a snapshot are kept off the heap
+     *
+     * @return true if they are kept as columns in direct buffers
+     */
+    boolean offHeapFacts() {
+        return offHeapFacts;
+    }
+
+    /**
+     * Gets the facts kept off the heap, e.g. to share them with the sessions of a server
+     *
+     * @return the columns of the facts of each predicate
+     */
+    Map<Symbol, FactColumns> factColumns() {
+        return columns;
+    }
+
+    /**
+     * Starts from the environment and deferred relations of another analyzer, e.g. the one a server restored its
+     * state into. The two environments are independent from then on.
+     *
+     * @param origin the analyzer to take the environment of
+     */
+    void startFrom(Analyzer origin) {
+        numbers = origin.numbers;
+        environment = origin.environment;
+        pending = origin.pending;
+    }
+
+    /**
+     * Gets the facts of a predicate kept off the heap
+     *
+     * @param name the name of the predicate
+     * @return the columns of its facts, or null if none of its facts are kept off the heap
+     */
+    FactColumns factColumns(Symbol name) {
+        return columns.get(name);
+    }
+
+    /**
+     * Sets the journal the writes of each committed line are appended to
+     *
+     * @param journal     the journal, or null to stop journaling
+     * @param environment true to journal the environment too and commit each line once it is analyzed, false to
+     *                    journal only the writes to the database and leave committing the line to the caller
+     */
+    void setJournal(Journal journal, boolean environment) {
+        this.journal = journal;
+        this.journalEnvironment = environment;
+    }
+
+    /**
+     * Turns the memoization of user defined predicates on or off
+     *
+     * @param memoize true to reuse results until a name or predicate they read is written
+     */
+    public void setMemoize(boolean memoize) {
+        this.memo = memoize ? new MemoTable() : null;
+    }
+
+    /**
+     * Turns the recording of changes on or off
+     *
+     * @param trackChanges true to record changes to the environment and database
+     */
+    public void setTrackChanges(boolean trackChanges) {
+        this.trackChanges = trackChanges;
+        clearChanges();
+    }
+
+    /**
+     * Forgets the changes recorded so far, called before each line of input
+     */
+    public void clearChanges() {
+        changedBindings.clear();
+        addedBindings.clear();
+        changedFacts.clear();
+    }
+
+    /**
+     * Prints the bindings and facts changed since the last clearChanges.
+     *
+     * @param out where to print
+     */
+    public void printChanges(PrintStream out) {
+        out.println("Changed Environment:");
+        changedBindings.forEach((key, value) ->
+                out.println(key + ": " + value + (addedBindings.contains(key) ? " (added)" : " (updated)")));
+        out.println("Changed Database:");
+        changedFacts.forEach((predicateKey, innerMap) -> {
+            out.println(predicateKey + ":");
+            innerMap.forEach((instanceKey, predicate) ->
+                    out.println("  " + instanceKey + "=" + predicate));
+        });
+    }
+
+    /**
+     * Helper method to bind a value to a name in the environment
+     *
+     * @param key   the name to bind
+     * @param value the value to bind
+     */
+    private void bind(Object key, Object value) {
+        if (value instanceof Integer number) {
+            bindNumber(key, number);
+            return;
+        }
+        if (writes != null) {
+            writes.add(key);
+            writes.add(value);
+        }
+        recordBinding(key, value);
+        if (journal != null && journalEnvironment) {
+            journal.bind(key, value);
+        }
+        environment = environment.put(key, value);
+        numbers = numbers.remove(key);
+    }
+
+    /**
+     * Helper method to bind a number to a name in the environment without boxing it
+     *
+     * @param key   the name to bind
+     * @param value the number to bind
+     */
+    private void bindNumber(Object key, int value) {
+        // The number is only boxed when the change is recorded
+        if (writes != null) {
+            writes.add(key);
+            writes.add(value);
+        }
+        if (trackChanges) {
+            recordBinding(key, value);
+        } else if (memo != null) {
+            memo.nameWritten(key);
+        }
+        if (journal != null && journalEnvironment) {
+            journal.bind(key, value);
+        }
+        numbers = numbers.put(key, value);
+        environment = environment.remove(key);
+        // Relations deferred on the name may be solvable now
+        if (pending.size() > 0) {
+            wake(key);
+        }
+    }
+
+    /**
+     * Helper method to record a binding that is about to be written
+     *
+     * @param key   the name being bound
+     * @param value the value being bound
+     */
+    private void recordBinding(Object key, Object value) {
+        if (trackChanges) {
+            if (!changedBindings.containsKey(key) && !numbers.containsKey(key) && !environment.containsKey(key)) {
+                addedBindings.add(key);
             }
-        } else {
-            throw new IllegalArgumentException("Invalid argument type for 'sumji'.");
+            changedBindings.put(key, value);
+        }
+        if (memo != null) {
+            memo.nameWritten(key);
+        }
+    }
+
+    /**
+     * Helper method to check if a name is bound in the environment
+     *
+     * @param key the name to check
+     * @return true if the name has a value
+     */
+    private boolean isBound(Object key) {
+        if (memo != null) {
+            memo.nameRead(key);
+        }
+        return numbers.containsKey(key) || environment.containsKey(key);
+    }
+
+    /**
+     * Helper method to get the value bound to a name in the environment
+     *
+     * @param key the name to look up
+     * @return the value, or null if the name is not bound
+     */
+    private Object lookup(Object key) {
+        if (memo != null) {
+            memo.nameRead(key);
+        }
+        if (numbers.containsKey(key)) {
+            return numbers.get(key, 0);
+        }
+        return environment.get(key);
+    }
+
+    /**
+     * Helper method to record a fact or predicate inserted into the database
+     *
+     * @param name      the name of the predicate
+     * @param arguments the arguments of the fact
+     * @param predicate the inserted predicate
+     */
+    private void recordFact(Symbol name, List<Token> arguments, Predicate predicate) {
+        if (trackChanges) {
+            changedFacts.computeIfAbsent(name, key -> new LinkedHashMap<>()).put(arguments, predicate);
         }
     }
 
+    /**
+     * Helper method to get the value of a number token, which the lexer already parsed unless it is too large
+     *
+     * @param argument the number token
+     * @return the number
+     */
+    private static int numberOf(Token argument) {
+        if (argument.value instanceof Integer number) {
+            return number;
+        }
+        return Integer.parseInt((String) argument.value);
+    }
+
     /**
      * Helper method to get argument values
      *
@@ -888,17 +1613,17 @@ class Analyzer {
      */
     private Object getArgumentValue(Token argument) {
         if (argument.type == Token.Type.NUMBER) {
-            // Directly parse and return the number
-            return Integer.parseInt((String) argument.value);
+            // Directly return the number, reusing the Integer the lexer made
+            return argument.value instanceof Integer ? argument.value : numberOf(argument);
         } else if (argument.type == Token.Type.NAME || argument.type == Token.Type.PREDICATE) {
             // Check if the name exists in the environment
-            if (environment.containsKey(argument.value)) {
-                Object value = environment.get(argument.value);
+            if (isBound(argument.value)) {
+                Object value = lookup(argument.value);
                 // If the value is an Integer or List, return it
                 if (value instanceof Integer || value instanceof List<?>) {
                     return value;
-                } else if (value instanceof String) {
-                     return getArgumentValue(new Token(Token.Type.NAME, value));
+                } else if (value instanceof Symbol) {
+                     return getArgumentValue(Token.of(Token.Type.NAME, value));
                 } else {
                     // If the value is neither an Integer nor a List, throw an error
                     throw new IllegalArgumentException("Variable '" + argument.value + "' is neither an integer nor a list");
@@ -919,6 +1644,44 @@ class Analyzer {
         }
     }
 
+    /**
+     * Helper method to get the fact table of a predicate, creating it if there is none yet
+     *
+     * @param name the name of the predicate
+     * @return the fact table of the predicate
+     */
+    private HashMap<List<Token>, Predicate> tableFor(Symbol name) {
+        HashMap<List<Token>, Predicate> table = database.get(name);
+        if (table == null) {
+            table = new HashMap<>();
+            database.put(name, table);
+            indexes.put(name, new FactIndex());
+            // The facts are undone first, so the table is empty by the time it is taken back out
+            undoLog.add(() -> {
+                database.remove(name);
+                indexes.remove(name);
+                TABLE_VERSION.incrementAndGet();
+            });
+        }
+        return table;
+    }
+
+    /**
+     * Helper method to get the index of a predicate, building it from the database if there is none yet
+     *
+     * @param name the name of the predicate
+     * @return the index of the predicate's facts
+     */
+    private FactIndex indexFor(Symbol name) {
+        return indexes.computeIfAbsent(name, key -> {
+            FactIndex index = new FactIndex(database.get(key).size());
+            for (List<Token> facts : database.get(key).keySet()) {
+                index.add(facts);
+            }
+            return index;
+        });
+    }
+
     /**
      * Helper method to get list of valid arguments
      *
@@ -926,22 +1689,70 @@ class Analyzer {
      * @return list of valid arguments
      */
     private Token findMatchingArgument(Statement statement) {
-        // Retrieve the map of argument lists to predicates for the given predicate name.
-        HashMap<List<Token>, Predicate> argumentMap = database.get(statement.predicate);
-        // Initialize a list to hold potential placeholder values.
+        List<List<Token>> candidates = indexFor(statement.predicate).candidates(statement.arguments);
+        // Small scans are not worth splitting up
+        if (candidates.size() < parallelScanThreshold) {
+            List<Object> placeholders = new ArrayList<>();
+            scanCandidates(candidates, statement.arguments, placeholders);
+            scanColumns(statement, placeholders);
+            return Token.of(Token.Type.LIST, placeholders);
+        }
+
+        // Each task scans a range of the candidates into its own list, the lists are joined in the order of the
+        // ranges so the placeholders come out in the same order as from one scan
+        int ranges = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, candidates.size() / PARALLEL_SCAN_RANGE));
+        List<List<Object>> found = new ArrayList<>(ranges);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(ranges);
+        for (int i = 0; i < ranges; i++) {
+            List<List<Token>> range = candidates.subList(i * candidates.size() / ranges, (i + 1) * candidates.size() / ranges);
+            List<Object> placeholders = new ArrayList<>();
+            found.add(placeholders);
+            tasks.add(ForkJoinTask.adapt(() -> scanCandidates(range, statement.arguments, placeholders)));
+        }
+        ForkJoinTask.invokeAll(tasks);
         List<Object> placeholders = new ArrayList<>();
+        for (List<Object> rangePlaceholders : found) {
+            placeholders.addAll(rangePlaceholders);
+        }
+        scanColumns(statement, placeholders);
+        // Return a new Token containing all discovered placeholder values.
+        return Token.of(Token.Type.LIST, placeholders);
+    }
+
+    /**
+     * Helper method to collect the placeholders of the facts of a query's predicate that are kept off the heap, after
+     * the ones of its fact table
+     *
+     * @param statement    the query
+     * @param placeholders where the placeholder values are added
+     */
+    private void scanColumns(Statement statement, List<Object> placeholders) {
+        FactColumns factColumns = columns.get(statement.predicate);
+        if (factColumns != null) {
+            factColumns.scan(statement.arguments, database.get(statement.predicate), placeholders, parallelScanThreshold);
+        }
+    }
 
-        // Iterate over each set of arguments (key) associated with the predicate.
-        for (List<Token> key : argumentMap.keySet()) {
+    /**
+     * Helper method to compare fact keys with the arguments of a query, collecting the placeholder of each key that
+     * differs from the arguments in exactly one name
+     *
+     * @param candidates   the keys the index could not rule out
+     * @param arguments    the arguments of the query
+     * @param placeholders where the placeholder values are added, in the order of the keys
+     */
+    private static void scanCandidates(List<List<Token>> candidates, List<Token> arguments, List<Object> placeholders) {
+        // Iterate over each set of arguments (key) that the index could not rule out.
+        for (List<Token> key : candidates) {
             Token placeholderValue = null; // To store the detected placeholder token.
             boolean potentialMatch = true; // Flag to track if the current key is a match.
 
             // Compare each token in the argument list.
             for (int i = 0; i < key.size(); i++) {
                 // Check for mismatching tokens.
-                if (!key.get(i).equals(statement.arguments.get(i))) {
+                if (!key.get(i).equals(arguments.get(i))) {
                     // If a mismatch is found and conditions indicate a placeholder, store it.
-                    if (placeholderValue == null && key.get(i).type == Token.Type.NAME && statement.arguments.get(i).type == Token.Type.NAME) {
+                    if (placeholderValue == null && key.get(i).type == Token.Type.NAME && arguments.get(i).type == Token.Type.NAME) {
                         placeholderValue = key.get(i); // Possible placeholder found.
                     } else {
                         // If another mismatch is found, it's not a match; break out of the loop.
@@ -956,8 +1767,5 @@ class Analyzer {
                 placeholders.add(placeholderValue.value);
             }
         }
-
-        // Return a new Token containing all discovered placeholder values.
-        return new Token(Token.Type.LIST, placeholders);
     }
 }
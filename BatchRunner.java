@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs script files in batch. Files are memory mapped and lexed in parallel, then parsed and analyzed in order.
+ */
+class BatchRunner {
+    // Largest part of a file that is mapped at once
+    private static final int REGION_SIZE = 1 << 30;
+    // Target size of the line aligned chunks that are lexed in parallel
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final Lexer lexer;
+    private final Parser parser;
+    private final Analyzer analyzer;
+    private final ForkJoinPool pool;
+    private final OutputMode outputMode;
+    // Number of chunks that may be lexed ahead of the analysis
+    private final int window;
+
+    public BatchRunner(Lexer lexer, Parser parser, Analyzer analyzer, ForkJoinPool pool, OutputMode outputMode) {
+        this.lexer = lexer;
+        this.parser = parser;
+        this.analyzer = analyzer;
+        this.pool = pool;
+        this.outputMode = outputMode;
+        this.window = pool.getParallelism() * 2;
+    }
+
+    /**
+     * A line after lexing, it either has tokens or the error from lexing it
+     */
+    private static class LexedLine {
+        // Index of the line within its chunk
+        final int index;
+        final List<Token> tokens;
+        final IllegalArgumentException error;
+
+        LexedLine(int index, List<Token> tokens, IllegalArgumentException error) {
+            this.index = index;
+            this.tokens = tokens;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The lexed lines of a chunk, along with how many lines the chunk spans
+     */
+    private static class LexedChunk {
+        final List<LexedLine> lines;
+        final int lineCount;
+
+        LexedChunk(List<LexedLine> lines, int lineCount) {
+            this.lines = lines;
+            this.lineCount = lineCount;
+        }
+    }
+
+    /**
+     * Runs a script file and reports its throughput
+     *
+     * @param path the script to run
+     * @throws IOException if the file cannot be read
+     */
+    public void run(Path path) throws IOException {
+        long start = System.nanoTime();
+        long statements = 0;
+        long lineNumber = 1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                long length = Math.min(REGION_SIZE, size - offset);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int end = (int) length;
+                // Cut the region after its last full line, the rest is mapped again with the next region
+                if (offset + length < size) {
+                    end = lineEnd(region, 0, end);
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + REGION_SIZE + " bytes at offset " + offset);
+                    }
+                }
+                long[] counts = runRegion(region, end, lineNumber);
+                statements += counts[0];
+                lineNumber = counts[1];
+                offset += end;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d statements in %.3f s (%.0f statements/s)%n",
+                path, statements, seconds, seconds > 0 ? statements / seconds : 0.0);
+    }
+
+    /**
+     * Helper method to lex a mapped region in parallel and analyze its lines in order
+     *
+     * @param region     the mapped region
+     * @param end        the end of the last full line in the region
+     * @param lineNumber the number of the first line in the region
+     * @return the number of statements analyzed and the number of the next line
+     */
+    private long[] runRegion(ByteBuffer region, int end, long lineNumber) {
+        long statements = 0;
+        Deque<ForkJoinTask<LexedChunk>> pending = new ArrayDeque<>();
+        int position = 0;
+        while (position < end || !pending.isEmpty()) {
+            // Keep a bounded number of chunks lexing ahead of the analysis
+            while (position < end && pending.size() < window) {
+                int chunkEnd = position + CHUNK_SIZE >= end ? end : lineEnd(region, position, position + CHUNK_SIZE);
+                if (chunkEnd <= position) {
+                    // A single line longer than a chunk is lexed on its own
+                    chunkEnd = nextLineEnd(region, position + CHUNK_SIZE, end);
+                }
+                ByteBuffer chunk = region.duplicate();
+                chunk.position(position).limit(chunkEnd);
+                pending.add(pool.submit(() -> lexChunk(chunk.slice())));
+                position = chunkEnd;
+            }
+            LexedChunk lexed = pending.removeFirst().join();
+            for (LexedLine line : lexed.lines) {
+                statements += analyzeLine(line, lineNumber + line.index);
+            }
+            lineNumber += lexed.lineCount;
+        }
+        return new long[]{statements, lineNumber};
+    }
+
+    /**
+     * Helper method to decode and lex every line of a chunk
+     *
+     * @param chunk the bytes of the chunk
+     * @return the lexed lines
+     */
+    private LexedChunk lexChunk(ByteBuffer chunk) {
+        String text = StandardCharsets.UTF_8.decode(chunk).toString();
+        List<LexedLine> lines = new ArrayList<>();
+        int index = 0;
+        int start = 0;
+        while (start < text.length()) {
+            int newline = text.indexOf('\n', start);
+            int end = newline < 0 ? text.length() : newline;
+            String input = text.substring(start, end).trim();
+            // Blank lines and the interactive terminator are skipped
+            if (!input.isEmpty() && !"/".equals(input)) {
+                try {
+                    lines.add(new LexedLine(index, lexer.tokenize(input), null));
+                } catch (IllegalArgumentException e) {
+                    lines.add(new LexedLine(index, null, e));
+                }
+            }
+            index++;
+            start = end + 1;
+        }
+        return new LexedChunk(lines, index);
+    }
+
+    /**
+     * Helper method to parse and analyze a lexed line
+     *
+     * @param line       the lexed line
+     * @param lineNumber the number of the line in the file
+     * @return the number of statements analyzed
+     */
+    private int analyzeLine(LexedLine line, long lineNumber) {
+        try {
+            if (line.error != null) {
+                throw line.error;
+            }
+            List<Statement> statements = parser.parse(line.tokens);
+            analyzer.clearChanges();
+            outputMode.print(analyzer.analyze(statements), analyzer, System.out);
+            return statements.size();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error on line " + lineNumber + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Helper method to find the end of the last full line before a limit
+     *
+     * @return the index after the last newline in [from, to), or from if there is none
+     */
+    private static int lineEnd(ByteBuffer buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return from;
+    }
+
+    /**
+     * Helper method to find the end of the first line after a position
+     *
+     * @return the index after the next newline, or the limit if there is none
+     */
+    private static int nextLineEnd(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return limit;
+    }
+}
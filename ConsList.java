@@ -0,0 +1,173 @@
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+/**
+ * Immutable singly linked list used for list values. Putting an element in front allocates one cell and shares the
+ * rest of the list, so a list built one steko at a time takes linear time and memory in total. It is a List, so it
+ * prints and compares like any other list.
+ * <p>
+ * Cells are hash-consed: structurally equal lists are the same object, so comparing two of them takes constant time.
+ * The table of cells is split into stripes by hash, each with its own lock, so threads building lists at the same
+ * time rarely wait on each other.
+ */
+final class ConsList extends AbstractList<Object> {
+    private static final ConsList EMPTY = new ConsList(null, null);
+    // Number of stripes of the table of cells, a power of two
+    private static final int STRIPES = 64;
+    // Every live cell, held weakly so lists nobody refers to any more can be collected, in the stripe of its hash
+    private static final Map<ConsList, WeakReference<ConsList>>[] INTERNED = newStripes();
+
+    private final Object head;
+    private final ConsList tail;
+    private final int size;
+    // The list hash and 31 to the power of the size, so the hash of a new cell follows from the hash of its tail
+    private final int hash;
+    private final int power;
+    // Whether no element is a list or a token, i.e. the list holds plain values
+    private final boolean flat;
+
+    private ConsList(Object head, ConsList tail) {
+        this.head = head;
+        this.tail = tail;
+        if (tail == null) {
+            this.size = 0;
+            this.hash = 1;
+            this.power = 1;
+            this.flat = true;
+        } else {
+            this.size = tail.size + 1;
+            this.power = 31 * tail.power;
+            this.hash = power + Objects.hashCode(head) * tail.power + (tail.hash - tail.power);
+            this.flat = tail.flat && !(head instanceof List) && !(head instanceof Token);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<ConsList, WeakReference<ConsList>>[] newStripes() {
+        Map<ConsList, WeakReference<ConsList>>[] stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap<>();
+        }
+        return stripes;
+    }
+
+    static ConsList empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Gets a list holding the elements of another list in front of a tail
+     *
+     * @param elements the elements to put in front, in order
+     * @param tail     the list the elements are put in front of
+     * @return the new list, sharing the tail
+     */
+    static ConsList of(List<?> elements, ConsList tail) {
+        ConsList list = tail;
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            list = list.prepend(elements.get(i));
+        }
+        return list;
+    }
+
+    /**
+     * Puts an element in front of the list
+     *
+     * @param element the new first element
+     * @return the new list, sharing this one as its tail
+     */
+    ConsList prepend(Object element) {
+        ConsList cell = new ConsList(element, this);
+        // The high bits of the hash are folded in, since the low bits of the hash of short lists vary little
+        Map<ConsList, WeakReference<ConsList>> stripe = INTERNED[(cell.hash ^ cell.hash >>> 16) & (STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<ConsList> existing = stripe.get(cell);
+            ConsList shared = existing == null ? null : existing.get();
+            if (shared != null) {
+                return shared;
+            }
+            stripe.put(cell, new WeakReference<>(cell));
+        }
+        return cell;
+    }
+
+    /**
+     * Checks if the list holds plain values only, which is how list values are kept in the environment
+     *
+     * @return true if no element is a list or a token
+     */
+    boolean isFlat() {
+        return flat;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        ConsList cell = this;
+        for (int i = 0; i < index; i++) {
+            cell = cell.tail;
+        }
+        return cell.head;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<>() {
+            private ConsList next = ConsList.this;
+
+            @Override
+            public boolean hasNext() {
+                return next.size > 0;
+            }
+
+            @Override
+            public Object next() {
+                if (next.size == 0) {
+                    throw new NoSuchElementException();
+                }
+                Object element = next.head;
+                next = next.tail;
+                return element;
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        // Tails are always shared, so two cells are equal when their heads are and their tails are the same object
+        if (other instanceof ConsList cons) {
+            return size == cons.size && hash == cons.hash && tail == cons.tail && Objects.equals(head, cons.head);
+        }
+        if (!(other instanceof List<?> list) || list.size() != size) {
+            return false;
+        }
+        Iterator<?> elements = list.iterator();
+        for (ConsList cell = this; cell.size > 0; cell = cell.tail) {
+            if (!Objects.equals(cell.head, elements.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
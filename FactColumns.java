@@ -0,0 +1,304 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * Facts of one predicate kept off the heap, for tables too large to hold as a Predicate and a list of tokens per
+ * fact. The facts of each arity are stored column by column in direct buffers, one int per argument, with every
+ * distinct argument token replaced by its number in a dictionary. An open addressing table of the rows, also off the
+ * heap, finds a fact by its arguments and keeps the same fact from being stored twice. Facts are only added by one
+ * thread at a time, while a scan may read the columns from several.
+ */
+final class FactColumns {
+    // Rows a segment starts with, grown by doubling
+    private static final int INITIAL_ROWS = 1024;
+    // Most slots of the hash table of the rows, as many as fit in one buffer, and most rows of one arity, so the
+    // table is never more than three quarters full
+    private static final int MAX_SLOTS = 1 << 28;
+    private static final int MAX_ROWS = MAX_SLOTS / 4 * 3;
+    // Fewest rows each task of a parallel scan compares
+    private static final int PARALLEL_SCAN_RANGE = 4096;
+
+    // Dictionary of the argument tokens. The code of a token is its index shifted left once, with the low bit set for
+    // names, so a scan can tell a name from its code alone.
+    private final Map<Token, Integer> codes = new HashMap<>();
+    private final List<Token> tokens = new ArrayList<>();
+    // Rows by their number of arguments, in the order of the arities
+    private final Map<Integer, Segment> segments = new TreeMap<>();
+    private long size;
+
+    /**
+     * Gets how many facts there are
+     *
+     * @return the number of facts of every arity
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Adds a fact, unless the same fact is already there
+     *
+     * @param key the arguments of the fact
+     * @return true if the fact was added
+     * @throws IllegalArgumentException if there is no room for another fact of its arity
+     */
+    public boolean add(List<Token> key) {
+        int[] row = new int[key.size()];
+        for (int i = 0; i < row.length; i++) {
+            Token token = key.get(i);
+            Integer code = codes.get(token);
+            if (code == null) {
+                code = tokens.size() << 1 | (token.type == Token.Type.NAME ? 1 : 0);
+                codes.put(token, code);
+                tokens.add(token);
+            }
+            row[i] = code;
+        }
+        if (!segments.computeIfAbsent(row.length, Segment::new).add(row)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Checks if there is a fact with exactly these arguments
+     *
+     * @param arguments the arguments of the query
+     * @return true if the fact is there
+     */
+    public boolean contains(List<Token> arguments) {
+        Segment segment = segments.get(arguments.size());
+        if (segment == null) {
+            return false;
+        }
+        int[] row = new int[arguments.size()];
+        for (int i = 0; i < row.length; i++) {
+            Integer code = codes.get(arguments.get(i));
+            // A token that is in no fact cannot be in this one
+            if (code == null) {
+                return false;
+            }
+            row[i] = code;
+        }
+        return segment.find(row) >= 0;
+    }
+
+    /**
+     * Collects the placeholder of each fact that differs from the arguments in exactly one name, the same as a scan of
+     * the keys of a fact table. Facts that the table holds too are skipped, since the table has its own scan.
+     *
+     * @param arguments    the arguments of the query
+     * @param shadowed     the fact table of the predicate
+     * @param placeholders where the placeholder values are added, in the order of the facts
+     * @param threshold    fewest rows of one arity to scan in parallel
+     */
+    public void scan(List<Token> arguments, Map<List<Token>, ?> shadowed, List<Object> placeholders, int threshold) {
+        // Tokens that are in no fact get a code no row holds
+        int[] query = new int[arguments.size()];
+        boolean[] names = new boolean[query.length];
+        for (int i = 0; i < query.length; i++) {
+            query[i] = codes.getOrDefault(arguments.get(i), -1);
+            names[i] = arguments.get(i).type == Token.Type.NAME;
+        }
+        for (Segment segment : segments.values()) {
+            // Rows longer than the query never match, and an empty row has nothing to find
+            if (segment.arity > query.length || segment.arity == 0) {
+                continue;
+            }
+            if (segment.rows < threshold) {
+                scanRange(segment, query, names, 0, segment.rows, shadowed, placeholders);
+                continue;
+            }
+            // Each task scans a range of the rows into its own list, joined in the order of the ranges
+            int ranges = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism() * 4, segment.rows / PARALLEL_SCAN_RANGE));
+            List<List<Object>> found = new ArrayList<>(ranges);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(ranges);
+            for (int i = 0; i < ranges; i++) {
+                int from = (int) ((long) i * segment.rows / ranges);
+                int to = (int) ((long) (i + 1) * segment.rows / ranges);
+                List<Object> rangePlaceholders = new ArrayList<>();
+                found.add(rangePlaceholders);
+                tasks.add(ForkJoinTask.adapt(() -> scanRange(segment, query, names, from, to, shadowed, rangePlaceholders)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (List<Object> rangePlaceholders : found) {
+                placeholders.addAll(rangePlaceholders);
+            }
+        }
+    }
+
+    /**
+     * Passes the arguments of every fact to an action, in the order of their arities and then of their adding
+     *
+     * @param action what to do with the arguments of each fact
+     */
+    public void forEach(Consumer<List<Token>> action) {
+        for (Segment segment : segments.values()) {
+            for (int row = 0; row < segment.rows; row++) {
+                action.accept(key(segment, row));
+            }
+        }
+    }
+
+    /**
+     * Helper method to compare a range of rows with a query, collecting the placeholder of each row that differs from
+     * it in exactly one name
+     */
+    private void scanRange(Segment segment, int[] query, boolean[] names, int from, int to,
+                           Map<List<Token>, ?> shadowed, List<Object> placeholders) {
+        IntBuffer[] columns = segment.columns;
+        for (int row = from; row < to; row++) {
+            int placeholder = -1;
+            boolean potentialMatch = true;
+            for (int i = 0; i < columns.length; i++) {
+                int code = columns[i].get(row);
+                if (code != query[i]) {
+                    // Only one name may differ from the query, and only where the query has a name too
+                    if (placeholder < 0 && (code & 1) != 0 && names[i]) {
+                        placeholder = code;
+                    } else {
+                        potentialMatch = false;
+                        break;
+                    }
+                }
+            }
+            if (potentialMatch && placeholder >= 0 && (shadowed.isEmpty() || !shadowed.containsKey(key(segment, row)))) {
+                placeholders.add(tokens.get(placeholder >>> 1).value);
+            }
+        }
+    }
+
+    /**
+     * Helper method to decode the arguments of a row
+     */
+    private List<Token> key(Segment segment, int row) {
+        Token[] key = new Token[segment.arity];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = tokens.get(segment.columns[i].get(row) >>> 1);
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Helper method to allocate a buffer of ints off the heap
+     */
+    private static IntBuffer allocate(int ints) {
+        return ByteBuffer.allocateDirect(ints * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Rows of one arity, one column per argument, and the hash table of the rows
+     */
+    private static final class Segment {
+        final int arity;
+        IntBuffer[] columns;
+        int rows;
+        int capacity = INITIAL_ROWS;
+        // Row number plus one for every row in the slot its hash leads to, 0 for an empty slot
+        IntBuffer slots = allocate(INITIAL_ROWS * 2);
+
+        Segment(int arity) {
+            this.arity = arity;
+            this.columns = new IntBuffer[arity];
+            for (int i = 0; i < arity; i++) {
+                columns[i] = allocate(capacity);
+            }
+        }
+
+        /**
+         * Adds a row of codes, unless the same row is already there
+         */
+        boolean add(int[] row) {
+            if (find(row) >= 0) {
+                return false;
+            }
+            if (rows == capacity) {
+                grow();
+            }
+            for (int i = 0; i < arity; i++) {
+                columns[i].put(rows, row[i]);
+            }
+            insert(hash(row), rows);
+            rows++;
+            return true;
+        }
+
+        /**
+         * Finds a row of codes
+         *
+         * @return the number of the row, or -1 if it is not there
+         */
+        int find(int[] row) {
+            int mask = slots.capacity() - 1;
+            for (int slot = hash(row) & mask; slots.get(slot) != 0; slot = (slot + 1) & mask) {
+                int candidate = slots.get(slot) - 1;
+                boolean same = true;
+                for (int i = 0; i < arity && same; i++) {
+                    same = columns[i].get(candidate) == row[i];
+                }
+                if (same) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Doubles the room for rows, and the hash table with it so it stays at most half full until it is as large as
+         * it can be
+         */
+        private void grow() {
+            if (capacity >= MAX_ROWS) {
+                throw new IllegalArgumentException(String.format("More than %d facts with %d arguments", MAX_ROWS, arity));
+            }
+            capacity = Math.min(MAX_ROWS, capacity * 2);
+            for (int i = 0; i < arity; i++) {
+                IntBuffer grown = allocate(capacity);
+                grown.put(0, columns[i], 0, rows);
+                columns[i] = grown;
+            }
+            slots = allocate(Math.min(MAX_SLOTS, capacity * 2));
+            int[] row = new int[arity];
+            for (int existing = 0; existing < rows; existing++) {
+                for (int i = 0; i < arity; i++) {
+                    row[i] = columns[i].get(existing);
+                }
+                insert(hash(row), existing);
+            }
+        }
+
+        private void insert(int hash, int row) {
+            int mask = slots.capacity() - 1;
+            int slot = hash & mask;
+            while (slots.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot, row + 1);
+        }
+
+        private static int hash(int[] row) {
+            // The codes are small and dense, so each one is mixed in on its own, as in murmur3, rather than summed
+            int hash = row.length;
+            for (int code : row) {
+                hash ^= Integer.rotateLeft(code * 0xCC9E2D51, 15) * 0x1B873593;
+                hash = Integer.rotateLeft(hash, 13) * 5 + 0xE6546B64;
+            }
+            hash ^= hash >>> 16;
+            hash *= 0x85EBCA6B;
+            hash ^= hash >>> 13;
+            hash *= 0xC2B2AE35;
+            return hash ^ hash >>> 16;
+        }
+    }
+}
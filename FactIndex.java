@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the facts of one predicate by the token found at each argument position
+ */
+class FactIndex {
+    // Keys grouped by their number of arguments
+    private final Map<Integer, List<List<Token>>> keysByArity = new HashMap<>();
+    // For each number of arguments, one map per position from a token to the keys holding that token there
+    private final Map<Integer, List<Map<Token, List<List<Token>>>>> postings = new HashMap<>();
+    // Number of keys the index is built for, so the list of keys of the first arity is not grown key by key
+    private final int expectedKeys;
+
+    public FactIndex() {
+        this(0);
+    }
+
+    public FactIndex(int expectedKeys) {
+        this.expectedKeys = expectedKeys;
+    }
+
+    /**
+     * Adds the key of a fact to the index
+     *
+     * @param key the arguments of the fact
+     */
+    public void add(List<Token> key) {
+        int arity = key.size();
+        keysByArity.computeIfAbsent(arity, size -> new ArrayList<>(keysByArity.isEmpty() ? expectedKeys : 10)).add(key);
+        List<Map<Token, List<List<Token>>>> positions = postings.computeIfAbsent(arity, size -> {
+            List<Map<Token, List<List<Token>>>> maps = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                maps.add(new HashMap<>());
+            }
+            return maps;
+        });
+        for (int i = 0; i < arity; i++) {
+            Map<Token, List<List<Token>>> posting = positions.get(i);
+            List<List<Token>> keys = posting.get(key.get(i));
+            if (keys == null) {
+                // Most tokens of a large table are held by one key, which is kept without a list of its own
+                posting.put(key.get(i), Collections.singletonList(key));
+            } else if (keys.size() == 1) {
+                List<List<Token>> grown = new ArrayList<>(4);
+                grown.add(keys.get(0));
+                grown.add(key);
+                posting.put(key.get(i), grown);
+            } else {
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Finds the keys that can differ from the arguments in at most one position.
+     * Any such key holds the same token as the arguments in at least one of the two smallest posting lists,
+     * so only those two lists are scanned.
+     *
+     * @param arguments the arguments of the query
+     * @return the keys that have to be compared with the arguments
+     */
+    public List<List<Token>> candidates(List<Token> arguments) {
+        List<List<Token>> candidates = new ArrayList<>();
+        keysByArity.forEach((arity, keys) -> {
+            // Keys longer than the query never match, and an empty key has nothing to find
+            if (arity > arguments.size() || arity == 0) {
+                return;
+            }
+            // A single argument can differ anywhere, so every key has to be compared
+            if (arity == 1) {
+                candidates.addAll(keys);
+                return;
+            }
+            List<Map<Token, List<List<Token>>>> positions = postings.get(arity);
+            int smallest = -1;
+            int secondSmallest = -1;
+            for (int i = 0; i < arity; i++) {
+                int size = posting(positions, arguments, i).size();
+                if (smallest < 0 || size < posting(positions, arguments, smallest).size()) {
+                    secondSmallest = smallest;
+                    smallest = i;
+                } else if (secondSmallest < 0 || size < posting(positions, arguments, secondSmallest).size()) {
+                    secondSmallest = i;
+                }
+            }
+            candidates.addAll(posting(positions, arguments, smallest));
+            // Skip the keys of the second list that were already taken from the first
+            Token shared = arguments.get(smallest);
+            for (List<Token> key : posting(positions, arguments, secondSmallest)) {
+                if (!key.get(smallest).equals(shared)) {
+                    candidates.add(key);
+                }
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Helper method to get the keys holding the argument at a position
+     */
+    private static List<List<Token>> posting(List<Map<Token, List<List<Token>>>> positions, List<Token> arguments, int position) {
+        return positions.get(position).getOrDefault(arguments.get(position), Collections.emptyList());
+    }
+}
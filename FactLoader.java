@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads facts in bulk from delimited files, one fact per line: the predicate, then its arguments. Files ending in
+ * .tsv are split on tabs, any other file on commas. Fields are classified like words of a statement, the predicate
+ * has to be a name or predicate word and the arguments names or numbers. The facts go straight into the fact tables
+ * without being lexed, parsed, or analyzed as statements, the same as if each line were
+ * "i lo predicate cmavo lo steko lo arg1 ... lo argN lo steni". Files are memory mapped and read in line aligned
+ * chunks in parallel, and the facts of each chunk are put into the tables on one thread, in the order of the file.
+ */
+class FactLoader {
+    // Largest part of a file that is mapped at once
+    private static final int REGION_SIZE = 1 << 30;
+    // Target size of the line aligned chunks that are read in parallel
+    private static final int CHUNK_SIZE = 1 << 20;
+    // Slots of the cache of recently read fields
+    private static final int RECENT_SIZE = 1 << 12;
+
+    private final Lexer lexer;
+    private final Analyzer analyzer;
+    private final ForkJoinPool pool;
+    // Number of chunks that may be read ahead of putting their facts into the tables
+    private final int window;
+
+    public FactLoader(Lexer lexer, Analyzer analyzer, ForkJoinPool pool) {
+        this.lexer = lexer;
+        this.analyzer = analyzer;
+        this.pool = pool;
+        this.window = pool.getParallelism() * 2;
+    }
+
+    /**
+     * A line that is not a fact, along with why
+     */
+    private static class LineError {
+        // Index of the line within its chunk
+        final int index;
+        final String message;
+
+        LineError(int index, String message) {
+            this.index = index;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The facts read from a chunk by predicate, the lines of it that are not facts, and how many lines it spans
+     */
+    private static class ReadChunk {
+        final Map<Symbol, List<List<Token>>> facts = new LinkedHashMap<>();
+        final List<LineError> errors = new ArrayList<>();
+        // End of the chunk within its region
+        final int end;
+        long factCount;
+        int lineCount;
+
+        ReadChunk(int end) {
+            this.end = end;
+        }
+    }
+
+    /**
+     * Loads the facts of a file and reports its throughput. Lines that are not facts are reported and skipped.
+     *
+     * @param path the file to load
+     * @throws IOException if the file cannot be read
+     */
+    public void load(Path path) throws IOException {
+        long start = System.nanoTime();
+        byte delimiter = (byte) (path.getFileName().toString().endsWith(".tsv") ? '\t' : ',');
+        // The predicates loaded from the file, whose indexes are built once it is read
+        Set<Symbol> names = new LinkedHashSet<>();
+        long facts = 0;
+        long lineNumber = 1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                long length = Math.min(REGION_SIZE, size - offset);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int end = (int) length;
+                // Cut the region after its last full line, the rest is mapped again with the next region
+                if (offset + length < size) {
+                    end = lineEnd(region, 0, end);
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + REGION_SIZE + " bytes at offset " + offset);
+                    }
+                }
+                long[] counts = loadRegion(region, end, delimiter, lineNumber, offset, size, names);
+                facts += counts[0];
+                lineNumber = counts[1];
+                offset += end;
+            }
+        }
+        analyzer.finishLoad(names);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d facts in %.3f s (%.0f facts/s)%n",
+                path, facts, seconds, seconds > 0 ? facts / seconds : 0.0);
+    }
+
+    /**
+     * Helper method to read the chunks of a mapped region in parallel and put their facts into the tables in order,
+     * on this thread
+     *
+     * @param region     the mapped region
+     * @param end        the end of the last full line in the region
+     * @param delimiter  the byte between fields
+     * @param lineNumber the number of the first line in the region
+     * @param offset     the offset of the region in the file
+     * @param size       the size of the file
+     * @param names      where the predicates of the facts are added
+     * @return the number of facts read and the number of the next line
+     */
+    private long[] loadRegion(ByteBuffer region, int end, byte delimiter, long lineNumber, long offset, long size,
+                              Set<Symbol> names) {
+        long facts = 0;
+        Deque<ForkJoinTask<ReadChunk>> pending = new ArrayDeque<>();
+        int position = 0;
+        while (position < end || !pending.isEmpty()) {
+            // Keep a bounded number of chunks reading ahead of the tables
+            while (position < end && pending.size() < window) {
+                int chunkEnd = position + CHUNK_SIZE >= end ? end : lineEnd(region, position, position + CHUNK_SIZE);
+                if (chunkEnd <= position) {
+                    // A single line longer than a chunk is read on its own
+                    chunkEnd = nextLineEnd(region, position + CHUNK_SIZE, end);
+                }
+                ByteBuffer chunk = region.duplicate();
+                chunk.position(position).limit(chunkEnd);
+                ByteBuffer bytes = chunk.slice();
+                int readEnd = chunkEnd;
+                pending.add(pool.submit(() -> new ChunkReader(delimiter).read(bytes, readEnd)));
+                position = chunkEnd;
+            }
+            ReadChunk read = pending.removeFirst().join();
+            for (LineError error : read.errors) {
+                System.err.println("Error on line " + (lineNumber + error.index) + ": " + error.message);
+            }
+            // New tables are sized for the share of the file their facts took so far
+            double scale = (double) size / (offset + read.end);
+            for (Map.Entry<Symbol, List<List<Token>>> predicate : read.facts.entrySet()) {
+                List<List<Token>> keys = predicate.getValue();
+                names.add(predicate.getKey());
+                analyzer.loadFacts(predicate.getKey(), keys, (int) Math.min(Integer.MAX_VALUE / 2, keys.size() * scale));
+            }
+            facts += read.factCount;
+            lineNumber += read.lineCount;
+        }
+        return new long[]{facts, lineNumber};
+    }
+
+    /**
+     * Reads the facts of one chunk. Each chunk has its own reader, so chunks are read in parallel without sharing
+     * anything but the lexer.
+     */
+    private class ChunkReader {
+        private final byte delimiter;
+        // Fields of the line being read
+        private final List<Token> fields = new ArrayList<>();
+        // Recently read fields and their tokens, by a hash of their text, so a field that repeats, like the
+        // predicate, is neither copied nor classified again
+        private final String[] recentText = new String[RECENT_SIZE];
+        private final Token[] recentTokens = new Token[RECENT_SIZE];
+        // Bytes of the field being read
+        private byte[] scratch = new byte[64];
+
+        ChunkReader(byte delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * Reads every line of a chunk
+         *
+         * @param chunk the bytes of the chunk
+         * @param end   the end of the chunk within its region
+         * @return the facts and errors of the chunk
+         */
+        ReadChunk read(ByteBuffer chunk, int end) {
+            ReadChunk read = new ReadChunk(end);
+            int limit = chunk.limit();
+            int position = 0;
+            while (position < limit) {
+                int lineStop = position;
+                while (lineStop < limit && chunk.get(lineStop) != '\n') {
+                    lineStop++;
+                }
+                try {
+                    if (readLine(chunk, position, lineStop)) {
+                        addFact(read);
+                        read.factCount++;
+                    }
+                } catch (IllegalArgumentException e) {
+                    read.errors.add(new LineError(read.lineCount, e.getMessage()));
+                }
+                read.lineCount++;
+                position = lineStop + 1;
+            }
+            return read;
+        }
+
+        /**
+         * Helper method to split a line into its fields and classify them
+         *
+         * @param buffer the chunk
+         * @param from   the start of the line
+         * @param to     the end of the line, before its newline
+         * @return true if the line holds a fact, false if it is blank
+         * @throws IllegalArgumentException if a field is not a valid word
+         */
+        private boolean readLine(ByteBuffer buffer, int from, int to) {
+            fields.clear();
+            // A line ending in \r\n is read the same as one ending in \n
+            if (to > from && buffer.get(to - 1) == '\r') {
+                to--;
+            }
+            int fieldStart = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || buffer.get(i) == delimiter) {
+                    Token field = field(buffer, fieldStart, i);
+                    if (field != null) {
+                        fields.add(field);
+                    } else if (i < to || !fields.isEmpty()) {
+                        throw new IllegalArgumentException("Empty field");
+                    }
+                    fieldStart = i + 1;
+                }
+            }
+            return !fields.isEmpty();
+        }
+
+        /**
+         * Helper method to read a field, without the blanks around it and in lowercase as the lexer reads words
+         *
+         * @param buffer the chunk
+         * @param from   the start of the field
+         * @param to     the end of the field
+         * @return the token of the field, or null if the field is blank
+         * @throws IllegalArgumentException if the field is not a valid word
+         */
+        private Token field(ByteBuffer buffer, int from, int to) {
+            while (from < to && (buffer.get(from) == ' ' || buffer.get(from) == '\t')) {
+                from++;
+            }
+            while (to > from && (buffer.get(to - 1) == ' ' || buffer.get(to - 1) == '\t')) {
+                to--;
+            }
+            int length = to - from;
+            if (length == 0) {
+                return null;
+            }
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            }
+            boolean ascii = true;
+            int hash = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(from + i);
+                if (b < 0) {
+                    ascii = false;
+                } else if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                scratch[i] = b;
+                hash = 31 * hash + b;
+            }
+            if (!ascii) {
+                // Not a valid word, the lexer reports it
+                return lexer.classify(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            }
+            int slot = (hash ^ (hash >>> 16)) & (RECENT_SIZE - 1);
+            String text = recentText[slot];
+            if (text != null && text.length() == length && sameText(text, length)) {
+                return recentTokens[slot];
+            }
+            // Valid words are ASCII, which is kept one byte per character
+            text = new String(scratch, 0, length, StandardCharsets.ISO_8859_1);
+            Token token = lexer.classify(text);
+            recentText[slot] = text;
+            recentTokens[slot] = token;
+            return token;
+        }
+
+        /**
+         * Helper method to compare the field being read with the text of an earlier one
+         *
+         * @param text   the earlier field
+         * @param length the length of both
+         * @return true if they are the same
+         */
+        private boolean sameText(String text, int length) {
+            for (int i = 0; i < length; i++) {
+                if (text.charAt(i) != scratch[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Helper method to check the fields of a line and add it to the facts of the chunk
+         *
+         * @param read the facts of the chunk
+         * @throws IllegalArgumentException if the fields do not make a fact
+         */
+        private void addFact(ReadChunk read) {
+            Token predicate = fields.get(0);
+            if (predicate.type != Token.Type.NAME && predicate.type != Token.Type.PREDICATE) {
+                throw new IllegalArgumentException(String.format("%s must be a valid name or valid predicate", predicate.value));
+            }
+            if (fields.size() < 2) {
+                throw new IllegalArgumentException(String.format("Fact of %s has no arguments", predicate.value));
+            }
+            Token[] arguments = new Token[fields.size() - 1];
+            for (int i = 1; i < fields.size(); i++) {
+                Token argument = fields.get(i);
+                if (argument.type != Token.Type.NAME && argument.type != Token.Type.NUMBER) {
+                    throw new IllegalArgumentException(String.format("%s is not a valid name or number", argument.value));
+                }
+                arguments[i - 1] = argument;
+            }
+            Symbol name = (Symbol) predicate.value;
+            read.facts.computeIfAbsent(name, key -> new ArrayList<>()).add(List.of(arguments));
+        }
+    }
+
+    /**
+     * Helper method to find the end of the last full line before a limit
+     *
+     * @return the index after the last newline in [from, to), or from if there is none
+     */
+    private static int lineEnd(ByteBuffer buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return from;
+    }
+
+    /**
+     * Helper method to find the end of the first line after a position
+     *
+     * @return the index after the next newline, or the limit if there is none
+     */
+    private static int nextLineEnd(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return limit;
+    }
+}
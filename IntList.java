@@ -0,0 +1,150 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable list of numbers kept in an int array instead of boxed elements. Lists made by putting numbers in front of
+ * each other share one array, filled from the back: the first list to put a number in the free slot before its
+ * elements takes the slot, any other list copies its elements into a new array twice the size. Putting a number in
+ * front of a list therefore takes constant time on average, like it does for ConsList.
+ */
+final class IntList extends AbstractList<Object> {
+    // Smallest array made for a new list
+    private static final int MINIMUM_CAPACITY = 8;
+
+    /**
+     * Array shared by the lists built on top of each other, and the lowest slot any of them has taken
+     */
+    private static final class Block {
+        final int[] values;
+        int lowest;
+
+        Block(int[] values, int lowest) {
+            this.values = values;
+            this.lowest = lowest;
+        }
+
+        // Takes the free slot before offset if no other list has taken it yet
+        synchronized boolean claim(int offset) {
+            if (lowest != offset || offset == 0) {
+                return false;
+            }
+            lowest = offset - 1;
+            return true;
+        }
+    }
+
+    private final Block block;
+    // The elements are block.values[offset] to block.values[offset + size - 1]
+    private final int offset;
+    private final int size;
+    // The list hash and 31 to the power of the size, kept the same way as in ConsList
+    private final int hash;
+    private final int power;
+
+    private IntList(Block block, int offset, int size, int hash, int power) {
+        this.block = block;
+        this.offset = offset;
+        this.size = size;
+        this.hash = hash;
+        this.power = power;
+    }
+
+    /**
+     * Gets the list of the given numbers
+     *
+     * @param numbers the numbers, which are copied
+     * @return the list
+     */
+    static IntList of(int... numbers) {
+        int capacity = Math.max(MINIMUM_CAPACITY, 2 * numbers.length);
+        int[] values = new int[capacity];
+        int offset = capacity - numbers.length;
+        System.arraycopy(numbers, 0, values, offset, numbers.length);
+        int hash = 1;
+        int power = 1;
+        for (int number : numbers) {
+            hash = 31 * hash + number;
+            power *= 31;
+        }
+        return new IntList(new Block(values, offset), offset, numbers.length, hash, power);
+    }
+
+    /**
+     * Puts a number in front of the list
+     *
+     * @param number the new first element
+     * @return the new list, sharing the array of this one where it can
+     */
+    IntList prepend(int number) {
+        int newPower = 31 * power;
+        int newHash = newPower + number * power + (hash - power);
+        if (block.claim(offset)) {
+            block.values[offset - 1] = number;
+            return new IntList(block, offset - 1, size + 1, newHash, newPower);
+        }
+        // The slot is taken or there is none left, so the elements move to the back of a larger array
+        int capacity = Math.max(MINIMUM_CAPACITY, 2 * (size + 1));
+        int[] values = new int[capacity];
+        int newOffset = capacity - size - 1;
+        values[newOffset] = number;
+        System.arraycopy(block.values, offset, values, newOffset + 1, size);
+        return new IntList(new Block(values, newOffset), newOffset, size + 1, newHash, newPower);
+    }
+
+    /**
+     * Gets a number of the list without boxing it
+     *
+     * @param index the position of the number
+     * @return the number
+     */
+    int getInt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return block.values[offset + index];
+    }
+
+    @Override
+    public Object get(int index) {
+        return getInt(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        // Two number lists are compared as array ranges, which needs neither boxing nor following pointers
+        if (other instanceof IntList list) {
+            if (size != list.size || hash != list.hash) {
+                return false;
+            }
+            return block == list.block && offset == list.offset
+                    || Arrays.equals(block.values, offset, offset + size, list.block.values, list.offset, list.offset + size);
+        }
+        return other instanceof List && super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(size * 4 + 2).append('[');
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(block.values[offset + i]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,586 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the writes to the database and environment, kept in a directory next to a snapshot.
+ * <p>
+ * The writes of each line are buffered while it runs and dropped if it is rolled back. Once the line commits they
+ * become one frame: its length, a CRC32 of its records, and the records. Each frame gets a sequence number, and the
+ * line waits until its frame is forced to disk before its result is shown. The first line to wait writes and forces
+ * every frame committed so far, and the lines that commit while it does are forced together by the next one, so
+ * concurrent lines share one fsync. The sessions of a server share the journal of the analyzer the server was
+ * restored into, journal only their writes to the database, and commit a line while they hold the write lock, so
+ * lines still commit one at a time, but wait for their frame after releasing it.
+ * <p>
+ * With asynchronous commit, which has to be asked for, a line does not wait: frames are forced a group at a time,
+ * when the group is full or a few milliseconds after its first frame, and a line whose result was shown is lost if
+ * the process crashes before its group is forced.
+ * <p>
+ * When the journal grows past a limit it is compacted: the whole state is saved as the snapshot of the next
+ * generation, which starts with an empty journal. On startup the newest snapshot is restored and its journal
+ * replayed up to the first frame that is incomplete or fails its check, which is where a crash cut it off.
+ */
+final class Journal implements Closeable {
+    // Longest a committed frame waits for its group to be forced
+    private static final long GROUP_MILLIS = 10;
+
+    // Kinds of record
+    private static final byte BIND = 1;
+    private static final byte FACT = 2;
+    private static final byte FATCI = 3;
+    private static final byte DEFER = 4;
+    private static final byte WAKE = 5;
+
+    private final Path directory;
+    private final Analyzer analyzer;
+    private final int groupSize;
+    private final long compactBytes;
+    // Whether a line is shown before its frame is forced
+    private final boolean asyncCommit;
+    private long generation;
+    private FileChannel channel;
+
+    // Records of the line running now, each a kind followed by its fields
+    private final List<Object[]> records = new ArrayList<>();
+    // Encodes the records of a line, reused for every line
+    private final ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+    private final SnapshotFile.Writer frameWriter = new SnapshotFile.Writer(Channels.newChannel(frameBytes), true);
+    private final CRC32 crc = new CRC32();
+    // Frames committed but not yet forced, guarded by this
+    private final ByteArrayOutputStream group = new ByteArrayOutputStream();
+    private int groupFrames;
+    private long groupStarted;
+    // Sequence numbers of the last frame committed and of the last one forced, and whether a group is being forced
+    private long committed;
+    private long forced;
+    private boolean forcing;
+    // Size of the journal file including the frames of the group
+    private long size;
+    // Failure to force a group, reported by every commit and wait after it
+    private IOException flushError;
+    private final ScheduledExecutorService flusher;
+
+    private Journal(Path directory, Analyzer analyzer, int groupSize, long compactBytes, boolean asyncCommit) {
+        this.directory = directory;
+        this.analyzer = analyzer;
+        this.groupSize = groupSize;
+        this.compactBytes = compactBytes;
+        this.asyncCommit = asyncCommit;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the journal in a directory, restoring the state it holds into an analyzer, which journals its writes
+     * from then on
+     *
+     * @param directory    the directory of the snapshot and journal, created if it does not exist
+     * @param analyzer     the analyzer to restore into and journal
+     * @param groupSize    most frames forced to disk together with asynchronous commit
+     * @param compactBytes size of the journal at which it is compacted into a snapshot
+     * @param asyncCommit  true to show a line before its frame is forced, which may lose it in a crash
+     * @return the open journal
+     * @throws IOException if the directory cannot be read or written, or holds a corrupt snapshot or journal
+     */
+    static Journal open(Path directory, Analyzer analyzer, int groupSize, long compactBytes, boolean asyncCommit)
+            throws IOException {
+        Files.createDirectories(directory);
+        Journal journal = new Journal(directory, analyzer, groupSize, compactBytes, asyncCommit);
+        journal.recover();
+        analyzer.setJournal(journal, true);
+        journal.flusher.scheduleWithFixedDelay(journal::flushDue, GROUP_MILLIS, GROUP_MILLIS, TimeUnit.MILLISECONDS);
+        return journal;
+    }
+
+    /**
+     * Checks if a directory holds no state of a journal yet, i.e. no snapshot and no frames
+     *
+     * @param directory the directory of the snapshot and journal
+     * @return true if there is nothing to restore from the directory, or it does not exist
+     * @throws IOException if the directory cannot be read
+     */
+    static boolean isEmpty(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return true;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith("snapshot-") && !name.endsWith(".tmp")
+                        || name.startsWith("journal-") && Files.size(entry) > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to restore the newest snapshot, replay its journal, and remove the files of older generations
+     *
+     * @throws IOException if the files cannot be read
+     */
+    private void recover() throws IOException {
+        // A snapshot is only moved into place once it is complete, so the newest one is always whole
+        generation = 0;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                files.add(entry);
+                String name = entry.getFileName().toString();
+                if (name.startsWith("snapshot-") && !name.endsWith(".tmp")) {
+                    generation = Math.max(generation, Long.parseLong(name.substring("snapshot-".length())));
+                }
+            }
+        }
+        if (Files.exists(snapshotPath(generation))) {
+            SnapshotFile.restore(snapshotPath(generation), analyzer);
+        }
+        channel = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        size = replay();
+        // Drop the torn tail, so new frames follow the last whole one
+        channel.truncate(size);
+        channel.position(size);
+        for (Path file : files) {
+            if (!file.equals(snapshotPath(generation)) && !file.equals(journalPath(generation))) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Helper method to replay the frames of the journal file
+     *
+     * @return the length of the whole frames
+     * @throws IOException if a whole frame holds records that cannot be read
+     */
+    private long replay() throws IOException {
+        if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + journalPath(generation) + " is too large to map");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return start;
+            }
+            ByteBuffer frame = buffer.slice(buffer.position(), length);
+            crc.reset();
+            crc.update(frame.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            try {
+                apply(new SnapshotFile.Reader(frame, null));
+            } catch (RuntimeException e) {
+                throw new IOException("Journal " + journalPath(generation) + " is corrupt at " + start + ": " + e, e);
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Helper method to apply the records of one frame to the analyzer
+     *
+     * @param reader reads the records of the frame
+     */
+    private void apply(SnapshotFile.Reader reader) {
+        ByteBuffer buffer = reader.buffer;
+        while (buffer.hasRemaining()) {
+            byte kind = buffer.get();
+            switch (kind) {
+                case BIND: {
+                    Object key = reader.getValue();
+                    analyzer.restoreBinding(key, reader.getValue());
+                    break;
+                }
+                case FACT:
+                case FATCI: {
+                    Symbol name = reader.getSymbol();
+                    List<Token> key = reader.getTokens();
+                    analyzer.restoreFact(name, key, reader.getPredicate(key), kind == FATCI);
+                    break;
+                }
+                case DEFER: {
+                    Relation relation = reader.getRelation();
+                    for (int names = buffer.getInt(); names > 0; names--) {
+                        analyzer.restoreDeferred(reader.getValue(), relation);
+                    }
+                    break;
+                }
+                case WAKE:
+                    analyzer.restorePending(reader.getValue(), null);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record kind " + kind);
+            }
+        }
+    }
+
+    private Path snapshotPath(long generation) {
+        return directory.resolve("snapshot-" + generation);
+    }
+
+    private Path journalPath(long generation) {
+        return directory.resolve("journal-" + generation);
+    }
+
+    /**
+     * Records a binding of the line running now
+     *
+     * @param key   the name bound
+     * @param value the value bound
+     */
+    void bind(Object key, Object value) {
+        records.add(new Object[]{BIND, key, value});
+    }
+
+    /**
+     * Records a fact or predicate put into a table by cmavo
+     *
+     * @param name      the name of the predicate
+     * @param arguments the arguments of the fact
+     * @param predicate the predicate
+     */
+    void putFact(Symbol name, List<Token> arguments, Predicate predicate) {
+        records.add(new Object[]{FACT, name, arguments, predicate});
+    }
+
+    /**
+     * Records a table replaced by fatci with its single fact
+     *
+     * @param name      the name of the predicate
+     * @param arguments the arguments of the fact
+     * @param predicate the predicate
+     */
+    void replaceFacts(Symbol name, List<Token> arguments, Predicate predicate) {
+        records.add(new Object[]{FATCI, name, arguments, predicate});
+    }
+
+    /**
+     * Records a relation deferred on its unknown names
+     *
+     * @param relation the relation
+     * @param names    the names it now waits on
+     */
+    void defer(Relation relation, List<Object> names) {
+        records.add(new Object[]{DEFER, relation, names});
+    }
+
+    /**
+     * Records the relations waiting on a name being taken up
+     *
+     * @param key the name that was bound
+     */
+    void wake(Object key) {
+        records.add(new Object[]{WAKE, key});
+    }
+
+    /**
+     * Gets the position in the records of the line, to roll back to
+     *
+     * @return the number of records so far
+     */
+    int mark() {
+        return records.size();
+    }
+
+    /**
+     * Drops the records made since a mark
+     *
+     * @param mark the position taken before the writes that were rolled back
+     */
+    void rollback(int mark) {
+        records.subList(mark, records.size()).clear();
+    }
+
+    /**
+     * Commits the records of the line as one frame, forcing the group to disk if it is full and compacting the
+     * journal if it has grown too large. The frame is durable once awaitForced returns for its sequence number.
+     *
+     * @return the sequence number of the frame, or of the last frame if the line wrote nothing
+     * @throws UncheckedIOException if the journal cannot be written, as no later line could be made durable either
+     * @throws IllegalArgumentException if the line bound a value the journal cannot hold
+     */
+    long commitLine() {
+        if (records.isEmpty()) {
+            synchronized (this) {
+                return committed;
+            }
+        }
+        try {
+            frameBytes.reset();
+            for (Object[] record : records) {
+                encode(record);
+            }
+            frameWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            records.clear();
+        }
+        byte[] payload = frameBytes.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        boolean compact;
+        boolean full;
+        long sequence;
+        synchronized (this) {
+            try {
+                if (flushError != null) {
+                    throw flushError;
+                }
+                if (groupFrames == 0) {
+                    groupStarted = System.nanoTime();
+                }
+                ByteBuffer header = ByteBuffer.allocate(8).putInt(payload.length).putInt((int) crc.getValue());
+                group.write(header.array());
+                group.write(payload);
+                groupFrames++;
+                sequence = ++committed;
+                size += 8 + payload.length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            compact = size >= compactBytes;
+            full = groupFrames >= groupSize;
+        }
+        if (compact) {
+            compact();
+        } else if (asyncCommit && full) {
+            forceGroup();
+        }
+        return sequence;
+    }
+
+    /**
+     * Waits until a committed frame is forced to disk, forcing the frames committed so far if no other thread is
+     * doing so already. With asynchronous commit it returns at once.
+     *
+     * @param sequence the sequence number of the frame
+     * @throws UncheckedIOException if the journal cannot be written
+     */
+    void awaitForced(long sequence) {
+        if (asyncCommit) {
+            return;
+        }
+        try {
+            force(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Helper method to encode one record into the frame
+     *
+     * @param record the kind and fields of the record
+     * @throws IOException never, the frame is kept in memory
+     */
+    @SuppressWarnings("unchecked")
+    private void encode(Object[] record) throws IOException {
+        byte kind = (byte) record[0];
+        frameWriter.putByte(kind);
+        switch (kind) {
+            case BIND:
+                frameWriter.putValue(record[1]);
+                frameWriter.putValue(record[2]);
+                break;
+            case FACT:
+            case FATCI: {
+                List<Token> arguments = (List<Token>) record[2];
+                frameWriter.putSymbol(((Symbol) record[1]).text);
+                frameWriter.putTokens(arguments);
+                frameWriter.putPredicate((Predicate) record[3], arguments);
+                break;
+            }
+            case DEFER: {
+                List<Object> names = (List<Object>) record[2];
+                frameWriter.putRelation((Relation) record[1]);
+                frameWriter.putInt(names.size());
+                for (Object name : names) {
+                    frameWriter.putValue(name);
+                }
+                break;
+            }
+            default:
+                frameWriter.putValue(record[1]);
+        }
+    }
+
+    /**
+     * Helper method to write the group and force it to disk, unless another thread is forcing one. The group is taken
+     * while holding the lock but written outside it, so lines keep committing frames to the next group meanwhile.
+     * A failure is kept in flushError and wakes the waiting lines.
+     */
+    private void forceGroup() {
+        byte[] frames;
+        long sequence;
+        FileChannel target;
+        synchronized (this) {
+            if (forcing || groupFrames == 0 || flushError != null) {
+                return;
+            }
+            frames = group.toByteArray();
+            sequence = committed;
+            target = channel;
+            group.reset();
+            groupFrames = 0;
+            forcing = true;
+        }
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(frames);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            // The length of the file does not change what a frame holds, so its metadata need not be forced
+            target.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            forcing = false;
+            if (error != null) {
+                flushError = error;
+            } else {
+                forced = sequence;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Helper method to force every committed frame
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    private void flush() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = committed;
+        }
+        force(sequence);
+    }
+
+    /**
+     * Helper method to wait until a frame is forced, forcing the group itself whenever no other thread is
+     *
+     * @param sequence the sequence number of the frame
+     * @throws IOException if the journal cannot be written
+     */
+    private void force(long sequence) throws IOException {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (flushError != null) {
+                        throw flushError;
+                    }
+                    if (forced >= sequence) {
+                        return;
+                    }
+                    if (forcing) {
+                        wait();
+                        continue;
+                    }
+                }
+                forceGroup();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the journal");
+        }
+    }
+
+    /**
+     * Helper method run by the flusher to force a group that has waited long enough
+     */
+    private void flushDue() {
+        synchronized (this) {
+            if (groupFrames == 0 || System.nanoTime() - groupStarted < TimeUnit.MILLISECONDS.toNanos(GROUP_MILLIS)) {
+                return;
+            }
+        }
+        forceGroup();
+    }
+
+    /**
+     * Saves the whole state as a snapshot, e.g. after writes that were not journaled line by line
+     *
+     * @throws UncheckedIOException if the snapshot or journal cannot be written
+     */
+    void checkpoint() {
+        compact();
+    }
+
+    /**
+     * Helper method to save the state as the snapshot of the next generation and start its empty journal. A crash
+     * before the snapshot is moved into place leaves the current generation as it was.
+     */
+    private void compact() {
+        try {
+            flush();
+            long next = generation + 1;
+            Path temporary = directory.resolve("snapshot-" + next + ".tmp");
+            SnapshotFile.save(temporary, analyzer);
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                file.force(true);
+            }
+            FileChannel nextChannel = FileChannel.open(journalPath(next), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            Files.move(temporary, snapshotPath(next), StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                channel.close();
+                channel = nextChannel;
+                size = 0;
+            }
+            Files.deleteIfExists(journalPath(generation));
+            Files.deleteIfExists(snapshotPath(generation));
+            generation = next;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces the last group to disk and closes the journal
+     *
+     * @throws IOException if the group cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdownNow();
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                channel.close();
+            }
+        }
+    }
+}
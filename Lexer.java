@@ -1,3 +1,7 @@
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -6,6 +10,34 @@ import java.util.List;
  */
 class Lexer {
 
+    // Character classes used by the scanner, anything outside of these is invalid in a token
+    private static final byte OTHER = 0;
+    private static final byte VOWEL = 1;
+    private static final byte CONSONANT = 2;
+    private static final byte DIGIT = 3;
+    private static final byte DOT = 4;
+    private static final byte SPACE = 5;
+
+    // Lookup table from an ASCII character to its class
+    private static final byte[] CLASSES = new byte[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = CONSONANT;
+        }
+        for (char c : "aeiou".toCharArray()) {
+            CLASSES[c] = VOWEL;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = DIGIT;
+        }
+        CLASSES['.'] = DOT;
+        // Same set of characters as the regex '\s'
+        for (char c : " \t\n\u000B\f\r".toCharArray()) {
+            CLASSES[c] = SPACE;
+        }
+    }
+
     /**
      * Method to actually tokenize the statements
      *
@@ -14,32 +46,169 @@ class Lexer {
      * @throws IllegalArgumentException if an illegal string is identified
      */
     public List<Token> tokenize(String input) throws IllegalArgumentException {
-        // Makes everything into lowercase since lowercase and uppercase letters are treated the same
-        String str = input.toLowerCase();
         // Initialize a new token list that stores the tokens
         List<Token> tokens = new ArrayList<>();
-        // Split the input into an array where each index stores a string such that it is split by a whitespace
-        String[] parts = str.split("\\s+");
-        // Iterate through all the strings in parts
-        for (String part : parts) {
-            // Case where there is a whitespace as the very first character in the input
-            if (part.isEmpty()) continue;
-                // If the string is an 'i,' label it as a INITIATOR token
-            else if (part.matches("i")) tokens.add(new Token(Token.Type.INITIATOR, part));
-                // If the string is a short word
-            else if (part.matches("[bcdfghjklmnpqrstvwxyz][aeiou]")) tokens.add(new Token(Token.Type.SHORT_WORD, part));
-                // If the string is a number, error checking for cases where number has leading 0's
-            else if (part.matches("^0$|^[1-9]\\d*$")) tokens.add(new Token(Token.Type.NUMBER, part));
-                // If the string is a name, i.e. having periods at start and end
-            else if (part.matches("\\.[a-z\\d]+\\.")) tokens.add(new Token(Token.Type.NAME, part));
-                // If it is a predicate. Case for CVCCV and CCVCV
-            else if (part.matches("([bcdfghjklmnpqrstvwxyz][aeiou][bcdfghjklmnpqrstvwxyz]{2}[aeiou])|([bcdfghjklmnpqrstvwxyz]{2}[aeiou][bcdfghjklmnpqrstvwxyz][aeiou])")) tokens.add(new Token(Token.Type.PREDICATE, part));
-                // Throw an error if a string does not match a token type
-            else {
-                throw new IllegalArgumentException("Error: Unrecognized or invalid token '" + part + "'.");
+        int length = input.length();
+        int i = 0;
+        // Walk through the input once, cutting a word at every run of whitespace
+        while (i < length) {
+            // Skip the whitespace before the next word
+            if (isSpace(input.charAt(i))) {
+                i++;
+                continue;
             }
+            int start = i;
+            boolean ascii = true;
+            boolean upper = false;
+            while (i < length && !isSpace(input.charAt(i))) {
+                char c = input.charAt(i);
+                if (c >= 128) ascii = false;
+                else if (c >= 'A' && c <= 'Z') upper = true;
+                i++;
+            }
+            tokens.add(classify(word(input, start, i, ascii, upper)));
         }
         // Return the list of tokens
         return tokens;
     }
-}
\ No newline at end of file
+
+    /**
+     * Helper method to labels a single lowercase word with its token type
+     *
+     * @param part the word to label
+     * @return the token for the word
+     * @throws IllegalArgumentException if the word does not match a token type
+     */
+    Token classify(String part) throws IllegalArgumentException {
+        int length = part.length();
+        char first = part.charAt(0);
+        // If the string is an 'i,' label it as a INITIATOR token
+        if (length == 1 && first == 'i') {
+            return Token.of(Token.Type.INITIATOR, part);
+        }
+        // If the string is a short word
+        if (length == 2 && classOf(first) == CONSONANT && classOf(part.charAt(1)) == VOWEL) {
+            return Token.of(Token.Type.SHORT_WORD, part);
+        }
+        // If the string is a number, error checking for cases where number has leading 0's
+        if (classOf(first) == DIGIT && (first != '0' || length == 1) && allOf(part, 1, length, DIGIT, DIGIT)) {
+            return Token.of(Token.Type.NUMBER, parseNumber(part));
+        }
+        // If the string is a name, i.e. having periods at start and end
+        if (length > 2 && first == '.' && part.charAt(length - 1) == '.' && allOf(part, 1, length - 1, VOWEL, DIGIT)) {
+            return Token.of(Token.Type.NAME, Symbol.of(part));
+        }
+        // If it is a predicate. Case for CVCCV and CCVCV
+        if (length == 5 && isPredicate(part)) {
+            return Token.of(Token.Type.PREDICATE, Symbol.of(part));
+        }
+        // Throw an error if a string does not match a token type
+        throw new IllegalArgumentException("Error: Unrecognized or invalid token '" + part + "'.");
+    }
+
+    /**
+     * Helper method to parse a number once while lexing, so it is not parsed again on every use
+     *
+     * @param digits the digits of the number
+     * @return the number as an Integer, or the digits if the number does not fit in an int
+     */
+    private static Object parseNumber(String digits) {
+        // Ten digits may already be too large for an int
+        if (digits.length() > 10) {
+            return digits;
+        }
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            value = value * 10 + (digits.charAt(i) - '0');
+        }
+        return value <= Integer.MAX_VALUE ? (Object) (int) value : digits;
+    }
+
+    /**
+     * Creates a stream that pulls tokens lazily from a reader
+     *
+     * @param reader the source of the script
+     * @return stream of tokens read from the reader
+     */
+    public TokenStream stream(Reader reader) {
+        return new TokenStream(this, reader);
+    }
+
+    /**
+     * Creates a stream that pulls tokens lazily from a UTF-8 encoded channel
+     *
+     * @param channel the source of the script
+     * @return stream of tokens read from the channel
+     */
+    public TokenStream stream(ReadableByteChannel channel) {
+        return new TokenStream(this, Channels.newReader(channel, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Helper method to check the CVCCV and CCVCV predicate shapes
+     *
+     * @param part a five letter word
+     * @return true if the word is a predicate, false otherwise
+     */
+    private boolean isPredicate(String part) {
+        byte c0 = classOf(part.charAt(0));
+        byte c1 = classOf(part.charAt(1));
+        byte c2 = classOf(part.charAt(2));
+        byte c3 = classOf(part.charAt(3));
+        byte c4 = classOf(part.charAt(4));
+        if (c0 != CONSONANT || c4 != VOWEL) return false;
+        return (c1 == VOWEL && c2 == CONSONANT && c3 == CONSONANT)
+                || (c1 == CONSONANT && c2 == VOWEL && c3 == CONSONANT);
+    }
+
+    /**
+     * Helper method to check that every character in a range falls within a range of classes
+     *
+     * @param part the word to check
+     * @param from first index, inclusive
+     * @param to   last index, exclusive
+     * @param low  lowest accepted class
+     * @param high highest accepted class
+     * @return true if every character is accepted
+     */
+    private boolean allOf(String part, int from, int to, byte low, byte high) {
+        for (int i = from; i < to; i++) {
+            byte type = classOf(part.charAt(i));
+            if (type < low || type > high) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to cut a word out of the input in lowercase, since lowercase and uppercase letters are treated the same
+     */
+    private String word(String input, int start, int end, boolean ascii, boolean upper) {
+        if (!ascii) {
+            // Leave anything outside of ASCII to the standard case mapping
+            return input.substring(start, end).toLowerCase();
+        }
+        if (!upper) {
+            return input.substring(start, end);
+        }
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            chars[i - start] = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Helper method to check if a character separates two words
+     */
+    static boolean isSpace(char c) {
+        return classOf(c) == SPACE;
+    }
+
+    /**
+     * Helper method to look up the class of a character
+     */
+    private static byte classOf(char c) {
+        return c < 128 ? CLASSES[c] : OTHER;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the regex classifier the lexer used to have against the single-pass table lexer, on the same lines. The lines
+ * are read from the script files given on the command line, or generated if there are none.
+ */
+class LexerBenchmark {
+    // Rounds run before timing, so both lexers are compiled by the time they are measured
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+    private static final int GENERATED_LINES = 100_000;
+
+    public static void main(String[] args) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String arg : args) {
+            lines.addAll(Files.readAllLines(Paths.get(arg), StandardCharsets.UTF_8));
+        }
+        if (lines.isEmpty()) {
+            lines = generate(GENERATED_LINES);
+        }
+        Lexer lexer = new Lexer();
+        // Only lines both lexers accept are timed, and both have to give the same tokens for them
+        List<String> accepted = new ArrayList<>();
+        long words = 0;
+        for (String line : lines) {
+            List<Token> tokens;
+            try {
+                tokens = lexer.tokenize(line);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (!tokens.equals(tokenizeWithRegex(line))) {
+                throw new IllegalStateException("The lexers disagree on: " + line);
+            }
+            accepted.add(line);
+            words += tokens.size();
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRegex(accepted);
+            runTable(lexer, accepted);
+        }
+        long regexNanos = 0;
+        long tableNanos = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            runRegex(accepted);
+            regexNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            runTable(lexer, accepted);
+            tableNanos += System.nanoTime() - start;
+        }
+        System.out.printf("%d lines, %d words, %d rounds%n", accepted.size(), words, ROUNDS);
+        report("regex", regexNanos, words);
+        report("table", tableNanos, words);
+        System.out.printf("speedup: %.1fx%n", tableNanos > 0 ? (double) regexNanos / tableNanos : 0.0);
+    }
+
+    /**
+     * Helper method to print the time of one lexer
+     */
+    private static void report(String name, long nanos, long words) {
+        double seconds = nanos / 1e9 / ROUNDS;
+        System.out.printf("%s: %.3f s per round (%.0f words/s)%n", name, seconds, seconds > 0 ? words / seconds : 0.0);
+    }
+
+    private static int runRegex(List<String> lines) {
+        int tokens = 0;
+        for (String line : lines) {
+            tokens += tokenizeWithRegex(line).size();
+        }
+        return tokens;
+    }
+
+    private static int runTable(Lexer lexer, List<String> lines) {
+        int tokens = 0;
+        for (String line : lines) {
+            tokens += lexer.tokenize(line).size();
+        }
+        return tokens;
+    }
+
+    /**
+     * The lexer as it was before the table lexer, matching each word against the regular expressions of the token
+     * types in turn. The values of the tokens are made the same way as the table lexer makes them, so only the
+     * matching differs.
+     */
+    private static List<Token> tokenizeWithRegex(String input) {
+        String str = input.toLowerCase();
+        List<Token> tokens = new ArrayList<>();
+        String[] parts = str.split("\\s+");
+        for (String part : parts) {
+            if (part.isEmpty()) continue;
+            else if (part.matches("i")) tokens.add(Token.of(Token.Type.INITIATOR, part));
+            else if (part.matches("[bcdfghjklmnpqrstvwxyz][aeiou]")) tokens.add(Token.of(Token.Type.SHORT_WORD, part));
+            else if (part.matches("^0$|^[1-9]\\d*$")) tokens.add(Token.of(Token.Type.NUMBER, parseNumber(part)));
+            else if (part.matches("\\.[a-z\\d]+\\.")) tokens.add(Token.of(Token.Type.NAME, Symbol.of(part)));
+            else if (part.matches("([bcdfghjklmnpqrstvwxyz][aeiou][bcdfghjklmnpqrstvwxyz]{2}[aeiou])|([bcdfghjklmnpqrstvwxyz]{2}[aeiou][bcdfghjklmnpqrstvwxyz][aeiou])")) tokens.add(Token.of(Token.Type.PREDICATE, Symbol.of(part)));
+            else {
+                throw new IllegalArgumentException("Error: Unrecognized or invalid token '" + part + "'.");
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Helper method to parse a number the same way as the lexer, keeping the digits if it does not fit in an int
+     */
+    private static Object parseNumber(String digits) {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            return digits;
+        }
+    }
+
+    /**
+     * Helper method to generate lines of facts and queries over a fixed set of names
+     */
+    private static List<String> generate(int count) {
+        String[] predicates = {"prami", "gerku", "klama", "ctuca"};
+        Random random = new Random(313);
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String predicate = predicates[random.nextInt(predicates.length)];
+            lines.add(String.format("i lo .n%d. %s lo .n%d. li %d", random.nextInt(1000), predicate,
+                    random.nextInt(1000), random.nextInt(100)));
+        }
+        return lines;
+    }
+}
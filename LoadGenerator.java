@@ -0,0 +1,121 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client that replays scripts against a running server from many sessions at once and reports the throughput
+ */
+class LoadGenerator {
+    private final Lexer lexer;
+    private final int port;
+    private final int sessions;
+
+    public LoadGenerator(Lexer lexer, int port, int sessions) {
+        this.lexer = lexer;
+        this.port = port;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Runs every session to the end of the scripts and reports sessions and statements per second
+     *
+     * @param scripts the scripts each session sends, one line at a time
+     * @throws IOException if a script cannot be read or a session fails
+     */
+    public void run(List<Path> scripts) throws IOException {
+        List<String> lines = new ArrayList<>();
+        long statementsPerSession = 0;
+        for (Path script : scripts) {
+            for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+                String input = line.trim();
+                // Blank lines and the interactive terminator are skipped
+                if (input.isEmpty() || "/".equals(input)) {
+                    continue;
+                }
+                lines.add(input);
+                statementsPerSession += countStatements(input);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                running.add(pool.submit(() -> {
+                    runSession(lines);
+                    return null;
+                }));
+            }
+            for (Future<?> session : running) {
+                session.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Session failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the sessions", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long statements = statementsPerSession * sessions;
+        System.out.printf("%d sessions, %d statements in %.3f s (%.1f sessions/s, %.0f statements/s)%n",
+                sessions, statements, seconds, seconds > 0 ? sessions / seconds : 0.0, seconds > 0 ? statements / seconds : 0.0);
+    }
+
+    /**
+     * Helper method to send every line over one connection, waiting for the answer to each line before the next
+     *
+     * @param lines the lines to send
+     * @throws IOException if the connection fails or the server closes it early
+     */
+    private void runSession(List<String> lines) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8)) {
+            socket.setTcpNoDelay(true);
+            for (String line : lines) {
+                out.println(line);
+                out.flush();
+                // The answer to a line ends with a line holding only "/"
+                String answer;
+                while (!"/".equals(answer = in.readLine())) {
+                    if (answer == null) {
+                        throw new IOException("Server closed the session");
+                    }
+                }
+            }
+            out.println("/");
+            out.flush();
+        }
+    }
+
+    /**
+     * Helper method to count the statements of a line, lines that do not lex count as none
+     */
+    private int countStatements(String input) {
+        try {
+            int count = 0;
+            for (Token token : lexer.tokenize(input)) {
+                if (token.type == Token.Type.INITIATOR) count++;
+            }
+            return count;
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+}
@@ -1,21 +1,227 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Main class to run the program
  */
 public class Lojban {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java Lojban [--stream | --batch | --serve | --load] [options] [script...]",
+            "  --full | --changes | --quiet   how much to print after each line",
+            "  --memo                         remember the results of user defined predicates",
+            "  --parallel                     run independent statements of a line in parallel",
+            "  --off-heap-facts               keep loaded facts off the heap",
+            "  --max-depth=N --max-steps=N    limits of one rule evaluation",
+            "  --scan-threshold=N             fewest facts to scan in parallel",
+            "  --port=N --sessions=N          port to serve on, and sessions of the load generator",
+            "  --restore=FILE --save=FILE     snapshot to start from, and to save on the way out",
+            "  --journal=DIR                  journal every committed line to a directory",
+            "  --async-commit                 show a line before the journal has it on disk, which a crash may lose",
+            "  --group-size=N                 lines written to the journal at once with --async-commit",
+            "  --compact-bytes=N              journal size that triggers a compaction",
+            "  --facts=FILE                   load facts in bulk from a CSV or TSV file");
 
     public static void main(String args[]) {
         // Create the predicate database
-        HashMap<String, HashMap<List<Token>, Predicate>> predicateDatabase = new HashMap<>();
+        HashMap<Symbol, HashMap<List<Token>, Predicate>> predicateDatabase = new HashMap<>();
         // Create an instance of Lexer to tokenize input
         Lexer lexer = new Lexer();
         // Create an instance of Parser to parse the tokenized input
         Parser parser = new Parser(predicateDatabase);
         // Create an instance of Analyzer to analyze the parsed input
         Analyzer analyzer = new Analyzer(predicateDatabase);
+
+        // Read the options and script files from the command line
+        String runMode = null;
+        OutputMode outputMode = null;
+        boolean memoize = false;
+        boolean parallel = false;
+        boolean offHeapFacts = false;
+        int scanThreshold = 50_000;
+        int maxDepth = 10_000;
+        long maxSteps = 10_000_000;
+        int port = 7313;
+        int sessions = 1;
+        Path restorePath = null;
+        Path savePath = null;
+        Path journalDirectory = null;
+        boolean asyncCommit = false;
+        int groupSize = 64;
+        long compactBytes = 64L << 20;
+        List<Path> factFiles = new ArrayList<>();
+        List<Path> scripts = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if ("--stream".equals(arg) || "--batch".equals(arg) || "--serve".equals(arg) || "--load".equals(arg)) {
+                    runMode = arg;
+                } else if ("--memo".equals(arg)) {
+                    memoize = true;
+                } else if ("--parallel".equals(arg)) {
+                    parallel = true;
+                } else if ("--async-commit".equals(arg)) {
+                    asyncCommit = true;
+                } else if ("--off-heap-facts".equals(arg)) {
+                    offHeapFacts = true;
+                } else if (arg.startsWith("--max-depth=")) {
+                    maxDepth = intOption(arg, "--max-depth=");
+                } else if (arg.startsWith("--max-steps=")) {
+                    maxSteps = longOption(arg, "--max-steps=");
+                } else if (arg.startsWith("--scan-threshold=")) {
+                    scanThreshold = intOption(arg, "--scan-threshold=");
+                } else if (arg.startsWith("--port=")) {
+                    port = intOption(arg, "--port=");
+                } else if (arg.startsWith("--sessions=")) {
+                    sessions = intOption(arg, "--sessions=");
+                } else if (arg.startsWith("--restore=")) {
+                    restorePath = Paths.get(arg.substring("--restore=".length()));
+                } else if (arg.startsWith("--save=")) {
+                    savePath = Paths.get(arg.substring("--save=".length()));
+                } else if (arg.startsWith("--journal=")) {
+                    journalDirectory = Paths.get(arg.substring("--journal=".length()));
+                } else if (arg.startsWith("--facts=")) {
+                    factFiles.add(Paths.get(arg.substring("--facts=".length())));
+                } else if (arg.startsWith("--group-size=")) {
+                    groupSize = intOption(arg, "--group-size=");
+                } else if (arg.startsWith("--compact-bytes=")) {
+                    compactBytes = longOption(arg, "--compact-bytes=");
+                } else if (OutputMode.fromOption(arg) != null) {
+                    outputMode = OutputMode.fromOption(arg);
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                } else {
+                    scripts.add(Paths.get(arg));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+        // Scripts only print what each line changed unless asked otherwise
+        if (outputMode == null) {
+            outputMode = runMode == null ? OutputMode.FULL : OutputMode.CHANGES;
+        }
+        analyzer.setTrackChanges(outputMode == OutputMode.CHANGES);
+        analyzer.setEvaluationLimits(maxDepth, maxSteps);
+        analyzer.setMemoize(memoize);
+        analyzer.setParallel(parallel);
+        analyzer.setParallelScanThreshold(scanThreshold);
+        analyzer.setOffHeapFacts(offHeapFacts);
+        // Start from a saved database and environment instead of an empty one. With a journal, the snapshot only
+        // seeds a journal that holds nothing yet, since the state of both would otherwise be mixed.
+        if (restorePath != null && journalDirectory != null) {
+            try {
+                if (!Journal.isEmpty(journalDirectory)) {
+                    System.err.println("Error: --restore can only seed an empty journal, but " + journalDirectory
+                            + " already holds one");
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Error: could not read the journal in " + journalDirectory + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (restorePath != null) {
+            try {
+                SnapshotFile.restore(restorePath, analyzer);
+            } catch (IOException e) {
+                System.err.println("Error: could not restore " + restorePath + ": " + e.getMessage());
+                return;
+            }
+        }
+        // Replay the journal and keep appending every committed line to it
+        Journal journal = null;
+        if (journalDirectory != null) {
+            try {
+                journal = Journal.open(journalDirectory, analyzer, groupSize, compactBytes, asyncCommit);
+            } catch (IOException e) {
+                System.err.println("Error: could not open the journal in " + journalDirectory + ": " + e.getMessage());
+                return;
+            }
+        }
+        // The seeded state is made durable as the first snapshot of the journal
+        if (journal != null && restorePath != null) {
+            try {
+                journal.checkpoint();
+            } catch (UncheckedIOException e) {
+                System.err.println("Error: could not write the journal: " + e.getCause().getMessage());
+            }
+        }
+        // Load fact files in bulk before anything runs against the database
+        FactLoader loader = new FactLoader(lexer, analyzer, ForkJoinPool.commonPool());
+        for (Path factFile : factFiles) {
+            try {
+                loader.load(factFile);
+            } catch (IOException e) {
+                System.err.println("Error: could not load " + factFile + ": " + e.getMessage());
+            }
+        }
+        // Loaded facts are not journaled one by one, they are made durable by compacting them into a snapshot
+        if (journal != null && !factFiles.isEmpty()) {
+            try {
+                journal.checkpoint();
+            } catch (UncheckedIOException e) {
+                System.err.println("Error: could not write the journal: " + e.getCause().getMessage());
+            }
+        }
+
+        // Serve sessions on a local socket, sharing the restored and loaded database between them
+        if ("--serve".equals(runMode)) {
+            Server server = new Server(analyzer, journal, lexer, outputMode, memoize, maxDepth, maxSteps);
+            // The server runs until the process is stopped, so the journal is closed and the state saved on the way out
+            Journal serverJournal = journal;
+            Path serverSavePath = savePath;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(() -> finish(serverSavePath, serverJournal, analyzer))));
+            try {
+                server.run(port);
+            } catch (IOException e) {
+                System.err.println("Error: could not serve on port " + port + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        // Replay the given script files against a running server from several sessions at once
+        if ("--load".equals(runMode)) {
+            try {
+                new LoadGenerator(lexer, port, sessions).run(scripts);
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Stream the given script files instead of reading interactively
+        if ("--stream".equals(runMode)) {
+            for (Path script : scripts) {
+                streamScript(script, lexer, parser, analyzer, outputMode);
+            }
+            finish(savePath, journal, analyzer);
+            return;
+        }
+
+        // Run the given script files in batch, lexing them in parallel
+        if ("--batch".equals(runMode)) {
+            BatchRunner runner = new BatchRunner(lexer, parser, analyzer, ForkJoinPool.commonPool(), outputMode);
+            for (Path script : scripts) {
+                try {
+                    runner.run(script);
+                } catch (IOException e) {
+                    System.err.println("Error: could not read " + script + ": " + e.getMessage());
+                }
+            }
+            finish(savePath, journal, analyzer);
+            return;
+        }
+
         // Create a new scanner object
         Scanner scanner = new Scanner(System.in);
 
@@ -37,18 +243,11 @@ public class Lojban {
                     // Tokenize, parse, and analyze the input line
                     List<Token> tokens = lexer.tokenize(input);
                     List<Statement> statements = parser.parse(tokens);
+                    analyzer.clearChanges();
                     Statement lastStatement = analyzer.analyze(statements);
 
                     // Output the analysis of the current line
-                    System.out.println("-----------------------------------------------------------------------------------------");
-                    System.out.println("Processed statement: " + lastStatement);
-                    System.out.println("-----------------------------------------------------------------------------------------");
-                    System.out.println("Result: " + lastStatement.result);
-                    System.out.println("-----------------------------------------------------------------------------------------");
-                    analyzer.printEnvironment();
-                    System.out.println("-----------------------------------------------------------------------------------------");
-                    analyzer.printDatabase();
-                    System.out.println("-----------------------------------------------------------------------------------------");
+                    outputMode.print(lastStatement, analyzer, System.out);
                 } catch (IllegalArgumentException e) {
                     System.err.println("Error: " + e.getMessage());
                 }
@@ -57,5 +256,99 @@ public class Lojban {
             // Prompt for next line of input
             System.out.println("Enter next statement or '/' to finish:");
         }
+        finish(savePath, journal, analyzer);
+    }
+
+    /**
+     * Helper method to read the number of an option such as --port=7313
+     *
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    private static int intOption(String arg, String prefix) {
+        String value = arg.substring(prefix.length());
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw badNumber(prefix, value);
+        }
+    }
+
+    /**
+     * Helper method to read the number of an option such as --compact-bytes=1048576
+     *
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    private static long longOption(String arg, String prefix) {
+        String value = arg.substring(prefix.length());
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw badNumber(prefix, value);
+        }
+    }
+
+    /**
+     * Helper method to report the option whose value is not a number
+     */
+    private static IllegalArgumentException badNumber(String prefix, String value) {
+        return new IllegalArgumentException(String.format("%s expects a number, not '%s'", prefix.substring(0, prefix.length() - 1), value));
+    }
+
+    /**
+     * Closes the journal and saves the database and environment of the analyzer, if they were asked for
+     *
+     * @param path     the file to save to, or null to not save
+     * @param journal  the journal to close, or null if there is none
+     * @param analyzer the analyzer to save
+     */
+    private static void finish(Path path, Journal journal, Analyzer analyzer) {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                System.err.println("Error: could not write the journal: " + e.getMessage());
+            }
+        }
+        if (path == null) {
+            return;
+        }
+        try {
+            SnapshotFile.save(path, analyzer);
+        } catch (IOException e) {
+            System.err.println("Error: could not save " + path + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs a script one statement at a time while it is being read, so the whole file is never held in memory
+     *
+     * @param path       the script to run
+     * @param lexer      the lexer to tokenize with
+     * @param parser     the parser to parse with
+     * @param analyzer   the analyzer to analyze with
+     * @param outputMode how much to print after each statement
+     */
+    private static void streamScript(Path path, Lexer lexer, Parser parser, Analyzer analyzer, OutputMode outputMode) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            TokenStream stream = lexer.stream(channel);
+            // Reused for every statement of the script
+            List<Token> tokens = new ArrayList<>();
+            while (true) {
+                try {
+                    if (!stream.nextStatement(tokens)) {
+                        break;
+                    }
+                    List<Statement> statements = parser.parse(tokens);
+                    analyzer.clearChanges();
+                    outputMode.print(analyzer.analyze(statements), analyzer, System.out);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: could not read " + path + ": " + e.getMessage());
+        }
     }
-}
\ No newline at end of file
+}
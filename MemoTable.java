@@ -0,0 +1,217 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Memo table for the results of user defined predicates. Every result remembers the version of each name and
+ * predicate it read, and is only reused while none of them has been written since. A result found out of date is
+ * dropped, and past {@link #MAX_ENTRIES} results the least recently used one is dropped to make room.
+ */
+class MemoTable {
+    // Results remembered at most, over all predicates
+    static final int MAX_ENTRIES = 1 << 16;
+
+    /**
+     * Versions of the names and predicates read by one evaluation. The dependencies of nested evaluations are
+     * shared rather than copied, so a deep chain of rules does not repeat them at every level.
+     */
+    private static class Dependencies {
+        // The enclosing evaluation, only set while this one is in progress
+        Dependencies parent;
+        final Map<Object, Long> names = new HashMap<>();
+        final Map<Symbol, Long> predicates = new HashMap<>();
+        final List<Dependencies> nested = new ArrayList<>();
+        // Set if the evaluation wrote to the environment or database, such a result is never reused
+        boolean impure;
+
+        Dependencies(Dependencies parent) {
+            this.parent = parent;
+        }
+
+        void add(Dependencies other) {
+            nested.add(other);
+            impure |= other.impure;
+        }
+    }
+
+    /**
+     * The statement a result is remembered for
+     */
+    private static final class Key {
+        final Symbol predicate;
+        final List<Token> arguments;
+        final int hash;
+
+        Key(Symbol predicate, List<Token> arguments) {
+            this.predicate = predicate;
+            this.arguments = arguments;
+            this.hash = 31 * predicate.hashCode() + arguments.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && hash == key.hash && predicate == key.predicate
+                    && arguments.equals(key.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A remembered result along with what it depends on
+     */
+    private static class Entry {
+        final Result result;
+        final Dependencies dependencies;
+
+        Entry(Result result, Dependencies dependencies) {
+            this.result = result;
+            this.dependencies = dependencies;
+        }
+    }
+
+    // Advanced on every write, so a version is never handed out twice
+    private long clock;
+    private final Map<Object, Long> nameVersions = new HashMap<>();
+    private final Map<Symbol, Long> predicateVersions = new HashMap<>();
+    // In order of use, so the eldest is the least recently used
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // Dependencies of the innermost evaluation in progress
+    private Dependencies current;
+
+    /**
+     * Records that a name was read by the evaluations in progress
+     *
+     * @param name the name that was read
+     */
+    public void nameRead(Object name) {
+        if (current != null) {
+            current.names.putIfAbsent(name, nameVersions.getOrDefault(name, 0L));
+        }
+    }
+
+    /**
+     * Records that the facts of a predicate were read by the evaluations in progress
+     *
+     * @param predicate the predicate that was read
+     */
+    public void predicateRead(Symbol predicate) {
+        if (current != null) {
+            current.predicates.putIfAbsent(predicate, predicateVersions.getOrDefault(predicate, 0L));
+        }
+    }
+
+    /**
+     * Invalidates every result that read a name
+     *
+     * @param name the name that was written
+     */
+    public void nameWritten(Object name) {
+        nameVersions.put(name, ++clock);
+        if (current != null) {
+            current.impure = true;
+        }
+    }
+
+    /**
+     * Invalidates every result that read the facts of a predicate
+     *
+     * @param predicate the predicate that was written
+     */
+    public void predicateWritten(Symbol predicate) {
+        predicateVersions.put(predicate, ++clock);
+        if (current != null) {
+            current.impure = true;
+        }
+    }
+
+    /**
+     * Gets the remembered result of a predicate, if nothing it depends on has changed
+     *
+     * @param predicate the predicate of the statement
+     * @param arguments the arguments of the statement
+     * @return the remembered result, or null if there is none or it is out of date
+     */
+    public Result lookup(Symbol predicate, List<Token> arguments) {
+        Key key = new Key(predicate, arguments);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!isCurrent(entry.dependencies)) {
+            // Nothing written is ever unwritten, so an out of date result can never be reused
+            entries.remove(key);
+            return null;
+        }
+        // An enclosing evaluation depends on whatever the reused result depends on
+        if (current != null) {
+            current.add(entry.dependencies);
+        }
+        return entry.result;
+    }
+
+    /**
+     * Starts recording the dependencies of an evaluation
+     */
+    public void begin() {
+        current = new Dependencies(current);
+    }
+
+    /**
+     * Stops recording the dependencies of the innermost evaluation and remembers its result
+     *
+     * @param predicate the predicate of the statement
+     * @param arguments the arguments of the statement
+     * @param result    the result of the evaluation, or null if it failed
+     */
+    public void end(Symbol predicate, List<Token> arguments, Result result) {
+        Dependencies dependencies = current;
+        current = dependencies.parent;
+        dependencies.parent = null;
+        if (current != null) {
+            current.add(dependencies);
+        }
+        if (result != null && !dependencies.impure) {
+            entries.put(new Key(predicate, arguments), new Entry(result, dependencies));
+        }
+    }
+
+    /**
+     * Helper method to check that nothing a result read has been written since
+     */
+    private boolean isCurrent(Dependencies dependencies) {
+        // Walk the shared dependencies without recursion, visiting each one once
+        Set<Dependencies> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Dependencies> pending = new ArrayDeque<>();
+        pending.push(dependencies);
+        while (!pending.isEmpty()) {
+            Dependencies next = pending.pop();
+            if (!visited.add(next)) continue;
+            for (Map.Entry<Object, Long> name : next.names.entrySet()) {
+                if (!name.getValue().equals(nameVersions.getOrDefault(name.getKey(), 0L))) return false;
+            }
+            for (Map.Entry<Symbol, Long> predicate : next.predicates.entrySet()) {
+                if (!predicate.getValue().equals(predicateVersions.getOrDefault(predicate.getKey(), 0L))) return false;
+            }
+            for (Dependencies nested : next.nested) {
+                pending.push(nested);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Handlers a statement can be dispatched to, resolved once from the predicate of the statement
+ */
+enum Opcode {
+    FATCI, SUMJI, VUJNI, DUNLI, STENI, STEKO, CMAVO,
+    // Any predicate that is not built in is looked up in the database
+    DATABASE;
+
+    /**
+     * Resolves the handler of a predicate
+     *
+     * @param predicate the predicate of a statement
+     * @return the opcode of the built-in predicate, or DATABASE for user defined predicates
+     */
+    static Opcode of(String predicate) {
+        switch (predicate) {
+            case "fatci":
+                return FATCI;
+            case "sumji":
+                return SUMJI;
+            case "vujni":
+                return VUJNI;
+            case "dunli":
+                return DUNLI;
+            case "steni":
+                return STENI;
+            case "steko":
+                return STEKO;
+            case "cmavo":
+                return CMAVO;
+            default:
+                return DATABASE;
+        }
+    }
+}
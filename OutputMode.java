@@ -0,0 +1,59 @@
+import java.io.PrintStream;
+
+/**
+ * How much is printed after each line of input
+ */
+enum OutputMode {
+    // The result along with the whole environment and database
+    FULL,
+    // The result along with only what the line changed in the environment and database
+    CHANGES,
+    // Only the result
+    QUIET;
+
+    /**
+     * Gets the output mode named by a command line option
+     *
+     * @param option the option, e.g. "--quiet"
+     * @return the output mode, or null if the option does not name one
+     */
+    static OutputMode fromOption(String option) {
+        switch (option) {
+            case "--full":
+                return FULL;
+            case "--changes":
+                return CHANGES;
+            case "--quiet":
+                return QUIET;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Prints the outcome of a line of input
+     *
+     * @param lastStatement the last statement of the line
+     * @param analyzer      the analyzer that analyzed the line
+     * @param out           where to print
+     */
+    void print(Statement lastStatement, Analyzer analyzer, PrintStream out) {
+        if (this == QUIET) {
+            out.println("Result: " + lastStatement.result);
+            return;
+        }
+        out.println("-----------------------------------------------------------------------------------------");
+        out.println("Processed statement: " + lastStatement);
+        out.println("-----------------------------------------------------------------------------------------");
+        out.println("Result: " + lastStatement.result);
+        out.println("-----------------------------------------------------------------------------------------");
+        if (this == FULL) {
+            analyzer.printEnvironment(out);
+            out.println("-----------------------------------------------------------------------------------------");
+            analyzer.printDatabase(out);
+        } else {
+            analyzer.printChanges(out);
+        }
+        out.println("-----------------------------------------------------------------------------------------");
+    }
+}
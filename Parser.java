@@ -2,12 +2,30 @@ import java.util.*;
 
 
 /**
- * Class to parse the token list produced by the lexer
+ * Class to parse the token list produced by the lexer. It reads the tokens by index in one pass and leaves the list
+ * as it is. Its buffers are reused from one line to the next, so a parser is used by one thread at a time.
  */
 class Parser {
-    HashMap<String, HashMap<List<Token>, Predicate>> database;
+    // Predicate words that open and close a list
+    private static final Symbol STEKO = Symbol.of("steko");
+    private static final Symbol STENI = Symbol.of("steni");
 
-    public Parser(HashMap<String, HashMap<List<Token>, Predicate>> database) {
+    HashMap<Symbol, HashMap<List<Token>, Predicate>> database;
+
+    // The line being parsed and the position of the next token
+    private List<Token> tokens;
+    private int position;
+    // Arguments and predicate of the statement being parsed
+    private final List<Token> arguments = new ArrayList<>();
+    private Symbol predicate;
+    private boolean swapNextArguments;
+    // Last token taken into a statement, which decides whether a name or number follows 'lo'
+    private Token previous;
+    // Elements of each 'lo steko' of the open list, the first openFrames of them are in use
+    private final List<List<Token>> frames = new ArrayList<>();
+    private int openFrames;
+
+    public Parser(HashMap<Symbol, HashMap<List<Token>, Predicate>> database) {
         this.database = database;
     }
 
@@ -19,161 +37,208 @@ class Parser {
      * @throws IllegalArgumentException
      */
     public List<Statement> parse(List<Token> tokens) throws IllegalArgumentException {
-        List<Statement> statements = new ArrayList<>();
-        List<Token> arguments = new ArrayList<>();
-        List<Token> fullArguments = new ArrayList<>();
-        String predicate = null;
-        boolean swapNextArguments = false;
-        Deque<List<Object>> stack = new ArrayDeque<>();
-
-        // Checks to see if the first token is an initiator
-        if (!tokens.isEmpty() && tokens.get(0).type == Token.Type.INITIATOR) {
-            // Removes the first token so that no premature error is initiated
-            tokens.remove(0);
-            // Throw an error if the first token is not an initiator or if the input is empty
-        } else {
+        // Throw an error if the first token is not an initiator or if the input is empty
+        if (tokens.isEmpty() || tokens.get(0).type != Token.Type.INITIATOR) {
             throw new IllegalArgumentException("Invalid input string");
         }
 
-        // Iterate through all the tokens
-        for (Token token : tokens) {
-            switch (token.type) {
-                // If it is an initiator
-                case INITIATOR:
-                    // Check if there is a predicate for the statement
-                    if (predicate != null) {
-                        if (!stack.isEmpty()) {
-                            throw new IllegalArgumentException("A list needs to end with 'lo steni'");
-                        }
-                        // Create a new Statement object, saving the previous parsed statement with its arguments
-                        statements.add(new Statement(predicate, new ArrayList<>(arguments)));
-                        // Clear arguments for the next statement
-                        arguments.clear();
-                        // If no predicate is used in the statement, throw an error
-                    } else {
-                        throw new IllegalArgumentException("Predicate is not found");
-                    }
-                    // Reset the predicate for the next statement
-                    predicate = null;
-                    break;
-                // If its a SHORT WORD, NUMBER, or NAME add it as an argument for the statement
-                case SHORT_WORD:
-                    // If se is encountered, be sure to swap the next argument with the last argument added
-                    if ("se".equals(token.value)) {
-                        swapNextArguments = true; // Mark to swap the next arguments
-                    }
-                    // Add to the full argument list
-                    fullArguments.add(token);
-                    break;
-                case NUMBER:
-                    // Only add a number argument if its a valid number, i.e. 'lo' does not follow the number
-                    if (!isVariableFollowingLo(fullArguments)) {
-                        if(!stack.isEmpty()) {
-                            stack.peek().add(token);
-                            fullArguments.add(token);
-                        } else {
-                            swapNextArguments = handleArgumentAddition(arguments, fullArguments, token, swapNextArguments);
-                        }
-                    } else {
-                        throw new IllegalArgumentException("Number parse error");
-                    }
-                    break;
-                case NAME:
-                    // Only add an argument if its a valid name, i.e. 'lo' followed by name
-                    if (isVariableFollowingLo(fullArguments)) {
-                        if(!stack.isEmpty()) {
-                            stack.peek().add(token);
-                            fullArguments.add(token);
-                        } else {
-                            swapNextArguments = handleArgumentAddition(arguments, fullArguments, token, swapNextArguments);
-                        }
-                    } else {
-                        if (!stack.isEmpty() && !fullArguments.isEmpty() && !"steko".equals(fullArguments.get(fullArguments.size() - 1).value)) {
-                            token.type = Token.Type.PREDICATE;
-                            stack.peek().add(token);
-                            fullArguments.add(token);
-                        } else if (database.containsKey((String) token.value)) {
-                            predicate = (String) token.value;
-                        } else {
-                            throw new IllegalArgumentException(String.format("Name parse error on name %s", token.value));
-                        }
-                    }
-                    break;
-                case PREDICATE:
-                    // Check if the predicate succeeds a lo, meaning its an argument predicate
-                    if (!isVariableFollowingLo(fullArguments)) {
-                        // Ensure only the first valid predicate is set as the main predicate
-                        // Ensure that there is an argument before the predicate word
-                        if (predicate == null && arguments.size() == 1) {
-                            // Set the predicate value of the statement to this predicate
-                            predicate = (String) token.value;
-                        } else {
-                            throw new IllegalArgumentException("Format parse error");
-                        }
-                        // Add to arguments directly if it follows 'lo'
-                    } else {
-                        if (!"steko".equals(token.value) && !"steni".equals(token.value)) {
-                            // Call the add argument helper method
-                            swapNextArguments = handleArgumentAddition(arguments, fullArguments, token, swapNextArguments);
-                        } else {
-                            if ("steko".equals(token.value)) {
-                                stack.push(new ArrayList<>());
-                            } else {
-                                List<Object> finalList = new ArrayList<>();
-                                while (!stack.isEmpty()) {
-                                    // Pop the element from the stack, which will be a list itself
-                                    finalList.add(0, stack.pop());  // Add it to the beginning of the final list
-                                }
-                                List<Object> copyOfFinalList = new ArrayList<>(finalList);
-                                Token listToken = new Token(Token.Type.LIST, copyOfFinalList);
-                                arguments.add(listToken);
-                                finalList.clear();
-                            }
-                        }
-                        fullArguments.add(token);
-                    }
-                    break;
-                default:
-                    // Error check for unknown tokens
-                    throw new IllegalArgumentException("Unknown token type: " + token.type);
+        this.tokens = tokens;
+        // Start after the first initiator so that no premature error is initiated
+        position = 1;
+        previous = null;
+        swapNextArguments = false;
+        List<Statement> statements = new ArrayList<>();
+        try {
+            statements.add(parseStatement());
+            // Every further initiator starts the next statement
+            while (position < tokens.size()) {
+                position++;
+                statements.add(parseStatement());
             }
+        } finally {
+            this.tokens = null;
+            arguments.clear();
+            openFrames = 0;
+        }
+        // Return the list of statements
+        return statements;
+    }
+
+    /**
+     * Helper method to parse one statement, up to the next initiator or the end of the line
+     *
+     * @return the parsed statement
+     */
+    private Statement parseStatement() {
+        predicate = null;
+        arguments.clear();
+        while (position < tokens.size() && tokens.get(position).type != Token.Type.INITIATOR) {
+            parseToken(tokens.get(position++));
         }
 
-        // Handle the last statement
-        if (predicate != null) {
+        // If no predicate is used in the statement, throw an error
+        if (predicate == null) {
+            throw new IllegalArgumentException("Predicate is not found");
+        }
+        if (openFrames > 0) {
+            throw new IllegalArgumentException("A list needs to end with 'lo steni'");
+        }
+        return resolve(new Statement(predicate, new ArrayList<>(arguments)));
+    }
 
-            if (!stack.isEmpty()) {
-                throw new IllegalArgumentException("A list needs to end with 'lo steni'");
+    /**
+     * Helper method to parse one token of a statement
+     *
+     * @param token the token
+     */
+    private void parseToken(Token token) {
+        switch (token.type) {
+            case SHORT_WORD:
+                // If se is encountered, be sure to swap the next argument with the last argument added
+                if ("se".equals(token.value)) {
+                    swapNextArguments = true;
+                }
+                previous = token;
+                break;
+            case NUMBER:
+                // Only add a number argument if its a valid number, i.e. 'lo' does not follow the number
+                if (followsLo()) {
+                    throw new IllegalArgumentException("Number parse error");
+                }
+                addArgument(token);
+                break;
+            case NAME:
+                // Only add an argument if its a valid name, i.e. 'lo' followed by name
+                if (followsLo()) {
+                    addArgument(token);
+                } else if (openFrames > 0 && previous.value != STEKO) {
+                    // Within a list a name on its own is a predicate
+                    addArgument(Token.of(Token.Type.PREDICATE, token.value));
+                } else if (database.containsKey(token.value)) {
+                    predicate = (Symbol) token.value;
+                } else {
+                    throw new IllegalArgumentException(String.format("Name parse error on name %s", token.value));
+                }
+                break;
+            case PREDICATE:
+                // Check if the predicate succeeds a lo, meaning its an argument predicate
+                if (!followsLo()) {
+                    // Ensure only the first valid predicate is set as the main predicate
+                    // Ensure that there is an argument before the predicate word
+                    if (predicate == null && arguments.size() == 1) {
+                        predicate = (Symbol) token.value;
+                    } else {
+                        throw new IllegalArgumentException("Format parse error");
+                    }
+                } else if (token.value == STEKO) {
+                    previous = token;
+                    parseList();
+                } else if (token.value == STENI) {
+                    // A 'lo steni' outside of a list is the empty list
+                    previous = token;
+                    arguments.add(Token.of(Token.Type.LIST, ConsList.empty()));
+                } else {
+                    addStatementArgument(token);
+                }
+                break;
+            default:
+                // Error check for unknown tokens
+                throw new IllegalArgumentException("Unknown token type: " + token.type);
+        }
+    }
+
+    /**
+     * Helper method to parse a list from just after its first 'lo steko' up to 'lo steni'. Each 'lo steko' starts the
+     * next cell of the list, holding the elements up to the following 'lo steko' or 'lo steni', so
+     * "lo steko 1 2 lo steko 3 lo steni" is [[1, 2], [3]]. A list left open at the end of the statement is reported
+     * by parseStatement.
+     */
+    private void parseList() {
+        openFrame();
+        while (position < tokens.size() && tokens.get(position).type != Token.Type.INITIATOR) {
+            Token token = tokens.get(position++);
+            if (token.type == Token.Type.PREDICATE && followsLo() && token.value == STEKO) {
+                previous = token;
+                openFrame();
+            } else if (token.type == Token.Type.PREDICATE && followsLo() && token.value == STENI) {
+                previous = token;
+                arguments.add(Token.of(Token.Type.LIST, closeList()));
+                return;
+            } else {
+                parseToken(token);
             }
-            statements.add(new Statement(predicate, new ArrayList<>(arguments)));
+        }
+    }
+
+    /**
+     * Helper method to start the next cell of the open list, reusing the buffer of an earlier list if there is one
+     */
+    private void openFrame() {
+        if (openFrames == frames.size()) {
+            frames.add(new ArrayList<>());
         } else {
-            throw new IllegalArgumentException("Predicate is not found");
+            frames.get(openFrames).clear();
         }
-        // Return the list of statements
-        return statements;
+        openFrames++;
+    }
+
+    /**
+     * Helper method to close the open list
+     *
+     * @return the list, one cons cell for each 'lo steko' holding its elements
+     */
+    private ConsList closeList() {
+        // Lists are kept as shared cons lists, so equal list arguments compare in constant time
+        ConsList list = ConsList.empty();
+        for (int i = openFrames - 1; i >= 0; i--) {
+            list = list.prepend(ConsList.of(frames.get(i), ConsList.empty()));
+        }
+        openFrames = 0;
+        return list;
+    }
+
+    /**
+     * Helper method to resolve the facts of a user defined predicate once, so analyzing does not look them up by name
+     *
+     * @param statement the parsed statement
+     * @return the statement
+     */
+    private Statement resolve(Statement statement) {
+        if (statement.opcode == Opcode.DATABASE) {
+            statement.facts = database.get(statement.predicate);
+        }
+        return statement;
     }
 
     /**
      * Helper method to check if the predicate is the predicate of the statement or an argument
      *
-     * @param arguments current list of arguments of the statement
-     * @return true if it is an argument, false otherwise
+     * @return true if the last token taken is 'lo', so the current token is an argument
      */
-    private boolean isVariableFollowingLo(List<Token> arguments) {
-        // Check if the last argument is 'lo', indicating the current token should be treated as a variable
-        return !arguments.isEmpty() && "lo".equals(arguments.get(arguments.size() - 1).value);
+    private boolean followsLo() {
+        return previous != null && "lo".equals(previous.value);
+    }
+
+    /**
+     * Helper method to add a name or number, to the open list if there is one and to the statement otherwise
+     *
+     * @param token the argument
+     */
+    private void addArgument(Token token) {
+        if (openFrames > 0) {
+            frames.get(openFrames - 1).add(token);
+            previous = token;
+        } else {
+            addStatementArgument(token);
+        }
     }
 
     /**
-     * Helper method to add the arguments in the list
+     * Helper method to add an argument to the statement
      *
-     * @param arguments         the current list of arguments
-     * @param fullArguments     the full argument list
-     * @param token             the value to be added to the lists
-     * @param swapNextArguments if short word 'se' is encountered
-     * @return the updated swapNextArguments variable
+     * @param token the argument
      */
-    private Boolean handleArgumentAddition(List<Token> arguments, List<Token> fullArguments, Token token, boolean swapNextArguments) {
+    private void addStatementArgument(Token token) {
         if (swapNextArguments && !arguments.isEmpty()) {
             // Insert the new argument before the last argument added
             arguments.add(arguments.size() - 1, token);
@@ -182,7 +247,6 @@ class Parser {
         } else {
             arguments.add(token);
         }
-        fullArguments.add(token);
-        return swapNextArguments;
+        previous = token;
     }
 }
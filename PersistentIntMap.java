@@ -0,0 +1,328 @@
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Immutable hash array mapped trie from keys to int values. It works like PersistentMap, but the values are kept in
+ * int arrays, so numbers are never boxed on the way in or out.
+ *
+ * @param <K> the type of the keys, which may not be null
+ */
+final class PersistentIntMap<K> {
+    // Bits of the hash used at each level of the trie
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentIntMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K> PersistentIntMap<K> empty() {
+        return (PersistentIntMap<K>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(Object key) {
+        int hash = key.hashCode();
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            if (node instanceof CollisionNode collision) {
+                return collision.indexOf(key) >= 0;
+            }
+            BitmapNode bitmapNode = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmapNode.bitmap & bit) == 0) {
+                return false;
+            }
+            Object entryKey = bitmapNode.keys[Integer.bitCount(bitmapNode.bitmap & (bit - 1))];
+            if (!(entryKey instanceof Node)) {
+                return key.equals(entryKey);
+            }
+            node = (Node) entryKey;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the value bound to a key
+     *
+     * @param key     the key
+     * @param missing the value to return if the key is not bound
+     * @return the value bound to the key, or missing
+     */
+    public int get(Object key, int missing) {
+        int hash = key.hashCode();
+        Node node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            if (node instanceof CollisionNode collision) {
+                int index = collision.indexOf(key);
+                return index < 0 ? missing : collision.values[index];
+            }
+            BitmapNode bitmapNode = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmapNode.bitmap & bit) == 0) {
+                return missing;
+            }
+            int index = Integer.bitCount(bitmapNode.bitmap & (bit - 1));
+            Object entryKey = bitmapNode.keys[index];
+            if (!(entryKey instanceof Node)) {
+                return key.equals(entryKey) ? bitmapNode.values[index] : missing;
+            }
+            node = (Node) entryKey;
+        }
+        return missing;
+    }
+
+    /**
+     * Binds a value to a key
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the map with the binding, or this map if the key was already bound to the value
+     */
+    public PersistentIntMap<K> put(K key, int value) {
+        boolean[] added = new boolean[1];
+        int hash = key.hashCode();
+        Node newRoot = root == null
+                ? new BitmapNode(0, new Object[0], new int[0]).put(hash, key, value, 0, added)
+                : root.put(hash, key, value, 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentIntMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Removes the binding of a key
+     *
+     * @param key the key
+     * @return the map without the key, or this map if the key was not bound
+     */
+    public PersistentIntMap<K> remove(Object key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(key.hashCode(), key, 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentIntMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<? super K> action) {
+        if (root != null) {
+            root.forEach((ObjIntConsumer<Object>) action);
+        }
+    }
+
+    /**
+     * A node of the trie
+     */
+    private abstract static class Node {
+        abstract Node put(int hash, Object key, int value, int shift, boolean[] added);
+
+        // Returns null once the node is left empty
+        abstract Node remove(int hash, Object key, int shift);
+
+        abstract void forEach(ObjIntConsumer<Object> action);
+    }
+
+    /**
+     * Node holding up to 32 entries or children, one for each set bit of its bitmap. A slot holds either a key and
+     * its value, or a child node in place of the key.
+     */
+    private static final class BitmapNode extends Node {
+        final int bitmap;
+        final Object[] keys;
+        final int[] values;
+
+        BitmapNode(int bitmap, Object[] keys, int[] values) {
+            this.bitmap = bitmap;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        Node put(int hash, Object key, int value, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            // A free slot takes the entry directly
+            if ((bitmap & bit) == 0) {
+                Object[] newKeys = new Object[keys.length + 1];
+                int[] newValues = new int[values.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, index);
+                System.arraycopy(values, 0, newValues, 0, index);
+                newKeys[index] = key;
+                newValues[index] = value;
+                System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+                System.arraycopy(values, index, newValues, index + 1, values.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newKeys, newValues);
+            }
+            Object entryKey = keys[index];
+            if (entryKey instanceof Node child) {
+                Node newChild = child.put(hash, key, value, shift + BITS, added);
+                return newChild == child ? this : with(index, newChild, 0);
+            }
+            if (key.equals(entryKey)) {
+                return values[index] == value ? this : with(index, key, value);
+            }
+            // Two keys share the slot, so it is split into a child node
+            added[0] = true;
+            return with(index, pair(shift + BITS, entryKey.hashCode(), entryKey, values[index], hash, key, value), 0);
+        }
+
+        @Override
+        Node remove(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = Integer.bitCount(bitmap & (bit - 1));
+            Object entryKey = keys[index];
+            if (entryKey instanceof Node child) {
+                Node newChild = child.remove(hash, key, shift + BITS);
+                if (newChild == child) {
+                    return this;
+                }
+                return newChild == null ? without(bit, index) : with(index, newChild, 0);
+            }
+            return key.equals(entryKey) ? without(bit, index) : this;
+        }
+
+        @Override
+        void forEach(ObjIntConsumer<Object> action) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] instanceof Node child) {
+                    child.forEach(action);
+                } else {
+                    action.accept(keys[i], values[i]);
+                }
+            }
+        }
+
+        /**
+         * Helper method to copy the node with one slot replaced
+         */
+        private BitmapNode with(int index, Object key, int value) {
+            Object[] newKeys = keys.clone();
+            int[] newValues = values.clone();
+            newKeys[index] = key;
+            newValues[index] = value;
+            return new BitmapNode(bitmap, newKeys, newValues);
+        }
+
+        /**
+         * Helper method to copy the node with one slot taken out
+         */
+        private BitmapNode without(int bit, int index) {
+            if (keys.length == 1) {
+                return null;
+            }
+            Object[] newKeys = new Object[keys.length - 1];
+            int[] newValues = new int[values.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(values, 0, newValues, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(values, index + 1, newValues, index, values.length - index - 1);
+            return new BitmapNode(bitmap & ~bit, newKeys, newValues);
+        }
+    }
+
+    /**
+     * Node holding the entries of keys whose hashes are equal
+     */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        final Object[] keys;
+        final int[] values;
+
+        CollisionNode(int hash, Object[] keys, int[] values) {
+            this.hash = hash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        int indexOf(Object key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (key.equals(keys[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Node put(int hash, Object key, int value, int shift, boolean[] added) {
+            // A key with another hash is placed beside this node in a new bitmap node
+            if (hash != this.hash) {
+                return new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[]{this}, new int[1])
+                        .put(hash, key, value, shift, added);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (values[index] == value) {
+                    return this;
+                }
+                int[] newValues = values.clone();
+                newValues[index] = value;
+                return new CollisionNode(hash, keys, newValues);
+            }
+            Object[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            int[] newValues = Arrays.copyOf(values, values.length + 1);
+            newKeys[keys.length] = key;
+            newValues[values.length] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        @Override
+        Node remove(int hash, Object key, int shift) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (keys.length == 1) {
+                return null;
+            }
+            Object[] newKeys = new Object[keys.length - 1];
+            int[] newValues = new int[values.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(values, 0, newValues, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(values, index + 1, newValues, index, values.length - index - 1);
+            return new CollisionNode(hash, newKeys, newValues);
+        }
+
+        @Override
+        void forEach(ObjIntConsumer<Object> action) {
+            for (int i = 0; i < keys.length; i++) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * Helper method to build the smallest node holding two entries with different keys
+     */
+    private static Node pair(int shift, int hash1, Object key1, int value1, int hash2, Object key2, int value2) {
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[]{key1, key2}, new int[]{value1, value2});
+        }
+        int bit1 = (hash1 >>> shift) & MASK;
+        int bit2 = (hash2 >>> shift) & MASK;
+        if (bit1 == bit2) {
+            return new BitmapNode(1 << bit1, new Object[]{pair(shift + BITS, hash1, key1, value1, hash2, key2, value2)}, new int[1]);
+        }
+        return bit1 < bit2
+                ? new BitmapNode((1 << bit1) | (1 << bit2), new Object[]{key1, key2}, new int[]{value1, value2})
+                : new BitmapNode((1 << bit1) | (1 << bit2), new Object[]{key2, key1}, new int[]{value2, value1});
+    }
+}
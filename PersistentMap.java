@@ -0,0 +1,297 @@
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map stored as a hash array mapped trie. Putting a key returns a new map that shares every node
+ * off the path to the key with the old one, so keeping an old version around as a snapshot costs nothing.
+ *
+ * @param <K> the type of the keys, which may not be null
+ * @param <V> the type of the values
+ */
+final class PersistentMap<K, V> {
+    // Bits of the hash used at each level of the trie
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // Returned by the nodes when a key is missing, since null is a valid value
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(Object key) {
+        return root != null && root.find(key.hashCode(), key, 0) != NOT_FOUND;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Object value = root == null ? NOT_FOUND : root.find(key.hashCode(), key, 0);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    /**
+     * Binds a value to a key
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the map with the binding, or this map if the key was already bound to the value
+     */
+    public PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        int hash = key.hashCode();
+        Node newRoot = root == null
+                ? new BitmapNode(0, new Object[0]).put(hash, key, value, 0, added)
+                : root.put(hash, key, value, 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Removes the binding of a key
+     *
+     * @param key the key
+     * @return the map without the key, or this map if the key was not bound
+     */
+    public PersistentMap<K, V> remove(Object key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(key.hashCode(), key, 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    /**
+     * A node of the trie
+     */
+    private abstract static class Node {
+        abstract Object find(int hash, Object key, int shift);
+
+        abstract Node put(int hash, Object key, Object value, int shift, boolean[] added);
+
+        // Returns null once the node is left empty
+        abstract Node remove(int hash, Object key, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * Node holding up to 32 entries or children, one for each set bit of its bitmap. The array holds a key and a
+     * value for each entry, or null and the child node for each child.
+     */
+    private static final class BitmapNode extends Node {
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override
+        Object find(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object entryKey = array[index];
+            if (entryKey == null) {
+                return ((Node) array[index + 1]).find(hash, key, shift + BITS);
+            }
+            return key.equals(entryKey) ? array[index + 1] : NOT_FOUND;
+        }
+
+        @Override
+        Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            // A free slot takes the entry directly
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = key;
+                newArray[index + 1] = value;
+                System.arraycopy(array, index, newArray, index + 2, array.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object entryKey = array[index];
+            Object entryValue = array[index + 1];
+            if (entryKey == null) {
+                Node child = ((Node) entryValue).put(hash, key, value, shift + BITS, added);
+                return child == entryValue ? this : with(index, null, child);
+            }
+            if (key.equals(entryKey)) {
+                return entryValue == value ? this : with(index, key, value);
+            }
+            // Two keys share the slot, so it is split into a child node
+            added[0] = true;
+            return with(index, null, pair(shift + BITS, entryKey.hashCode(), entryKey, entryValue, hash, key, value));
+        }
+
+        @Override
+        Node remove(int hash, Object key, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = 2 * Integer.bitCount(bitmap & (bit - 1));
+            Object entryKey = array[index];
+            if (entryKey == null) {
+                Node child = ((Node) array[index + 1]).remove(hash, key, shift + BITS);
+                if (child == array[index + 1]) {
+                    return this;
+                }
+                return child == null ? without(bit, index) : with(index, null, child);
+            }
+            return key.equals(entryKey) ? without(bit, index) : this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        /**
+         * Helper method to copy the node with one slot replaced
+         */
+        private BitmapNode with(int index, Object key, Object value) {
+            Object[] newArray = array.clone();
+            newArray[index] = key;
+            newArray[index + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        /**
+         * Helper method to copy the node with one slot taken out
+         */
+        private BitmapNode without(int bit, int index) {
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, array.length - index - 2);
+            return new BitmapNode(bitmap & ~bit, newArray);
+        }
+    }
+
+    /**
+     * Node holding the entries of keys whose hashes are equal
+     */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override
+        Object find(int hash, Object key, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return array[i + 1];
+                }
+            }
+            return NOT_FOUND;
+        }
+
+        @Override
+        Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            // A key with another hash is placed beside this node in a new bitmap node
+            if (hash != this.hash) {
+                return new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[]{null, this})
+                        .put(hash, key, value, shift, added);
+            }
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    if (array[i + 1] == value) {
+                        return this;
+                    }
+                    Object[] newArray = array.clone();
+                    newArray[i + 1] = value;
+                    return new CollisionNode(hash, newArray);
+                }
+            }
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node remove(int hash, Object key, int shift) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    if (array.length == 2) {
+                        return null;
+                    }
+                    Object[] newArray = new Object[array.length - 2];
+                    System.arraycopy(array, 0, newArray, 0, i);
+                    System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+                    return new CollisionNode(hash, newArray);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Helper method to build the smallest node holding two entries with different keys
+     */
+    private static Node pair(int shift, int hash1, Object key1, Object value1, int hash2, Object key2, Object value2) {
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[]{key1, value1, key2, value2});
+        }
+        int bit1 = (hash1 >>> shift) & MASK;
+        int bit2 = (hash2 >>> shift) & MASK;
+        if (bit1 == bit2) {
+            return new BitmapNode(1 << bit1, new Object[]{null, pair(shift + BITS, hash1, key1, value1, hash2, key2, value2)});
+        }
+        return bit1 < bit2
+                ? new BitmapNode((1 << bit1) | (1 << bit2), new Object[]{key1, value1, key2, value2})
+                : new BitmapNode((1 << bit1) | (1 << bit2), new Object[]{key2, value2, key1, value1});
+    }
+}
@@ -7,19 +7,20 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Predicate {
-    String name;
+    Symbol name;
     List<Token> arguments;
     List<Statement> evaluations;  // This will store the list of statements to evaluate when this predicate is invoked.
+    volatile RuleStep[] body;  // The evaluations compiled by the analyzer, one step per statement.
 
     // Constructor for the Predicate without evaluations.
-    public Predicate(String name) {
+    public Predicate(Symbol name) {
         this.name = name;
         this.arguments = new ArrayList<>();
         this.evaluations = new ArrayList<>();  // Initialize evaluations to an empty list.
     }
 
     // Constructor for the Predicate with evaluations.
-    public Predicate(String name, List<Token> arguments, List<Statement> evaluations) {
+    public Predicate(Symbol name, List<Token> arguments, List<Statement> evaluations) {
         this.name = name;
         this.arguments = arguments;
         this.evaluations = evaluations;  // Initialize evaluations with the provided list.
@@ -28,6 +29,12 @@ public class Predicate {
     // Add a method to set evaluations if they are not set in the constructor.
     public void setEvaluations(List<Statement> evaluations) {
         this.evaluations = evaluations;
+        this.body = null;  // Compiled again on the next invocation.
+    }
+
+    // Add a method to set the compiled evaluations.
+    public void setBody(RuleStep[] body) {
+        this.body = body;
     }
 
     // Add a method to set arguments if they are not set in the constructor.
@@ -0,0 +1,122 @@
+import java.util.List;
+
+/**
+ * Arithmetic relation total = part1 + part2 between the three arguments of sumji or vujni. Statement
+ * "sumji a b c" states a = b + c, and "vujni a b c" states a = b - c, i.e. b = a + c, so both are solved the same way.
+ */
+final class Relation {
+    // What can be done with the relation, looked up from the kinds of its three roles
+    static final byte CHECK = 0;
+    static final byte SOLVE_TOTAL = 1;
+    static final byte SOLVE_PART1 = 2;
+    static final byte SOLVE_PART2 = 3;
+    static final byte DEFER = 4;
+    static final byte WRONG_TYPE = 5;
+
+    // Kinds of argument: a number or a name bound to one, a name without a value, anything else, or a name bound
+    // to something other than a number, which counts as known but fails once its value is needed
+    static final int KNOWN = 0;
+    static final int UNKNOWN = 1;
+    static final int OTHER = 2;
+    static final int NOT_A_NUMBER = 3;
+
+    // Action for every combination of kinds, indexed by total * 16 + part1 * 4 + part2
+    private static final byte[] ACTIONS = new byte[64];
+
+    static {
+        for (int total = 0; total < 4; total++) {
+            for (int part1 = 0; part1 < 4; part1++) {
+                for (int part2 = 0; part2 < 4; part2++) {
+                    int unknowns = (total == UNKNOWN ? 1 : 0) + (part1 == UNKNOWN ? 1 : 0) + (part2 == UNKNOWN ? 1 : 0);
+                    byte action;
+                    if (total == OTHER || part1 == OTHER || part2 == OTHER) {
+                        action = WRONG_TYPE;
+                    } else if (unknowns == 0) {
+                        action = CHECK;
+                    } else if (unknowns > 1) {
+                        action = DEFER;
+                    } else if (total == UNKNOWN) {
+                        action = SOLVE_TOTAL;
+                    } else {
+                        action = part1 == UNKNOWN ? SOLVE_PART1 : SOLVE_PART2;
+                    }
+                    ACTIONS[total * 16 + part1 * 4 + part2] = action;
+                }
+            }
+        }
+    }
+
+    // Name of the predicate that stated the relation
+    final String predicate;
+    // The arguments in the order total, part1, part2
+    final Token total;
+    final Token part1;
+    final Token part2;
+
+    private Relation(String predicate, Token total, Token part1, Token part2) {
+        this.predicate = predicate;
+        this.total = total;
+        this.part1 = part1;
+        this.part2 = part2;
+    }
+
+    /**
+     * Gets the relation stated by sumji, whose first argument is the sum of the other two
+     *
+     * @param arguments the three arguments of the statement
+     * @return the relation
+     */
+    static Relation sumji(List<Token> arguments) {
+        return new Relation("sumji", arguments.get(0), arguments.get(1), arguments.get(2));
+    }
+
+    /**
+     * Gets the relation stated by vujni, whose second argument is the sum of the other two
+     *
+     * @param arguments the three arguments of the statement
+     * @return the relation
+     */
+    static Relation vujni(List<Token> arguments) {
+        return new Relation("vujni", arguments.get(1), arguments.get(0), arguments.get(2));
+    }
+
+    /**
+     * Packs the kind of an argument and its number into one operand, so reading an argument does not allocate
+     *
+     * @param kind  the kind of the argument
+     * @param value the number, only meaningful for a known argument
+     * @return the operand
+     */
+    static long operand(int kind, int value) {
+        return ((long) kind << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    static int kindOf(long operand) {
+        return (int) (operand >>> 32);
+    }
+
+    static int valueOf(long operand) {
+        return (int) operand;
+    }
+
+    /**
+     * Looks up what to do with the relation
+     *
+     * @param total the operand of the total
+     * @param part1 the operand of the first part
+     * @param part2 the operand of the second part
+     * @return one of the actions
+     */
+    static byte action(long total, long part1, long part2) {
+        return ACTIONS[kindOf(total) * 16 + kindOf(part1) * 4 + kindOf(part2)];
+    }
+
+    @Override
+    public String toString() {
+        // Shown the way it was stated
+        if ("vujni".equals(predicate)) {
+            return part1.value + " = " + total.value + " - " + part2.value;
+        }
+        return total.value + " = " + part1.value + " + " + part2.value;
+    }
+}
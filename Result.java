@@ -1,10 +1,19 @@
 public class Result {
+    // Shared results for boolean outcomes, since results never change
+    static final Result TRUE = new Result(true);
+    static final Result FALSE = new Result(false);
+
     private final Object value;
 
     public Result(Object value) {
         this.value = value;
     }
 
+    // Gets the shared result for a boolean outcome.
+    public static Result of(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
     public Object getValue() {
         return value;
     }
@@ -0,0 +1,70 @@
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Explicit stack of the rules being evaluated, so deep chains of rules do not use up the Java stack
+ */
+class RuleStack {
+
+    /**
+     * One invocation of a rule, holding the results of its own body instead of the shared statements
+     */
+    static class Frame {
+        // The statement that invoked the rule
+        final Statement call;
+        final Predicate predicate;
+        final RuleStep[] body;
+        // Index of the next step of the body to run
+        int next;
+        // Whether every step that has run so far was true
+        boolean allTrue = true;
+
+        Frame(Statement call, Predicate predicate, RuleStep[] body) {
+            this.call = call;
+            this.predicate = predicate;
+            this.body = body;
+        }
+    }
+
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    // Rules on the stack, a rule that is invoked again before it finishes would never finish
+    private final Set<Predicate> active = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Number of steps run so far
+    long steps;
+
+    public void push(Frame frame) {
+        frames.push(frame);
+        active.add(frame.predicate);
+    }
+
+    public Frame pop() {
+        Frame frame = frames.pop();
+        active.remove(frame.predicate);
+        return frame;
+    }
+
+    public Frame peek() {
+        return frames.peek();
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    /**
+     * Checks if a rule is already being evaluated
+     *
+     * @param predicate the rule
+     * @return true if the rule is on the stack
+     */
+    public boolean contains(Predicate predicate) {
+        return active.contains(predicate);
+    }
+}
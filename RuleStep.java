@@ -0,0 +1,13 @@
+/**
+ * One compiled statement of the body of a user defined predicate
+ */
+interface RuleStep {
+    /**
+     * Runs the statement
+     *
+     * @param analyzer the analyzer whose environment the statement runs against
+     * @param stack the rules being evaluated, invoking another rule pushes it onto this stack
+     * @return the result of the statement, or null if a rule was pushed and its result comes once it finishes
+     */
+    Result run(Analyzer analyzer, RuleStack stack);
+}
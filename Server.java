@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves interpreter sessions on a local socket, one thread per connection, all sharing one predicate database
+ */
+class Server {
+    private final SharedDatabase database;
+    // Analyzer the state was restored and loaded into, whose environment every session starts from
+    private final Analyzer origin;
+    // Journal the database writes of every session are appended to, null unless journaling is turned on
+    private final Journal journal;
+    private final Lexer lexer;
+    private final OutputMode outputMode;
+    private final boolean memoize;
+    private final int maxDepth;
+    private final long maxSteps;
+
+    /**
+     * Creates a server over the database of an analyzer, e.g. one a snapshot, journal, or fact files were restored
+     * into. The analyzer itself is not used by the sessions and must not be used while the server runs.
+     *
+     * @param origin  the analyzer whose database is shared and whose environment each session starts from
+     * @param journal the journal opened on the analyzer, or null
+     */
+    public Server(Analyzer origin, Journal journal, Lexer lexer, OutputMode outputMode, boolean memoize, int maxDepth,
+                  long maxSteps) {
+        this.database = new SharedDatabase(origin.database, origin.factColumns());
+        this.origin = origin;
+        this.journal = journal;
+        this.lexer = lexer;
+        this.outputMode = outputMode;
+        this.memoize = memoize;
+        this.maxDepth = maxDepth;
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Accepts connections until the process is stopped
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port cannot be listened on
+     */
+    public void run(int port) throws IOException {
+        ExecutorService sessions = newSessionExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.out.println("Listening on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sessions.execute(newSession(socket));
+            }
+        } finally {
+            sessions.shutdown();
+        }
+    }
+
+    /**
+     * Runs an action once no line is being analyzed, and keeps any line from being analyzed afterwards, e.g. to
+     * close the journal when the process is stopped
+     *
+     * @param action what to do with the database at rest
+     */
+    public void stop(Runnable action) {
+        database.writeLock().lock();
+        action.run();
+    }
+
+    /**
+     * Helper method to create a session with its own parser and analyzer over the shared database
+     */
+    private Session newSession(Socket socket) {
+        Parser parser = new Parser(database.predicates);
+        Analyzer analyzer = new Analyzer(database.predicates, database.indexes, database.columns);
+        analyzer.startFrom(origin);
+        analyzer.setTrackChanges(outputMode == OutputMode.CHANGES);
+        analyzer.setEvaluationLimits(maxDepth, maxSteps);
+        analyzer.setMemoize(memoize);
+        // The environment of a session ends with it, so only its writes to the database are journaled
+        analyzer.setJournal(journal, false);
+        return new Session(socket, database, lexer, parser, analyzer, outputMode, memoize, journal);
+    }
+
+    /**
+     * Helper method to run each session on a virtual thread where the runtime has them (Java 21 and later),
+     * and on a platform thread of its own otherwise
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * One connection to the server. Each session has its own environment, while the predicate database is shared.
+ * The client sends a line of input at a time, the server answers with the output of the line followed by a line
+ * holding only "/", and a line holding only "/" from the client ends the session.
+ */
+class Session implements Runnable {
+    private final Socket socket;
+    private final SharedDatabase database;
+    private final Lexer lexer;
+    private final Parser parser;
+    private final Analyzer analyzer;
+    private final OutputMode outputMode;
+    private final boolean memoize;
+    // Journal the lines that write to the database are committed to, null unless journaling is turned on
+    private final Journal journal;
+    // Version of the database the memo table of this session has seen
+    private long seenVersion;
+
+    public Session(Socket socket, SharedDatabase database, Lexer lexer, Parser parser, Analyzer analyzer,
+                   OutputMode outputMode, boolean memoize, Journal journal) {
+        this.socket = socket;
+        this.database = database;
+        this.lexer = lexer;
+        this.parser = parser;
+        this.analyzer = analyzer;
+        this.outputMode = outputMode;
+        this.memoize = memoize;
+        this.journal = journal;
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = this.socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String input = line.trim();
+                // Check if the client wants to end the session
+                if ("/".equals(input)) {
+                    break;
+                }
+                if (!input.isEmpty()) {
+                    try {
+                        analyzeLine(input, out);
+                    } catch (IllegalArgumentException e) {
+                        out.println("Error: " + e.getMessage());
+                    } catch (UncheckedIOException e) {
+                        out.println("Error: could not write the journal: " + e.getCause().getMessage());
+                    }
+                }
+                out.println("/");
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error: session with " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Helper method to tokenize, parse, and analyze a line of input, holding the lock the line needs
+     *
+     * @param input the line of input
+     * @param out   where to print the output of the line
+     * @throws IllegalArgumentException if the line is not valid
+     */
+    private void analyzeLine(String input, PrintStream out) {
+        List<Token> tokens = lexer.tokenize(input);
+        List<Statement> statements;
+        Lock lock = database.readLock();
+        lock.lock();
+        try {
+            statements = parser.parse(tokens);
+        } finally {
+            lock.unlock();
+        }
+
+        boolean writes = database.mayWrite(statements);
+        // The output is held back until the line is durable
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        long committed = 0;
+        lock = writes ? database.writeLock() : database.readLock();
+        lock.lock();
+        try {
+            // Results remembered by this session may read facts another session has written since
+            if (memoize && database.version() != seenVersion) {
+                analyzer.setMemoize(true);
+            }
+            analyzer.clearChanges();
+            Statement lastStatement;
+            try {
+                lastStatement = analyzer.analyze(statements);
+                // Only a line holding the write lock writes to the database, so lines commit to the journal one at a time
+                if (writes && journal != null) {
+                    committed = journal.commitLine();
+                }
+            } finally {
+                seenVersion = writes ? database.written(statements) : database.version();
+            }
+            outputMode.print(lastStatement, analyzer, output);
+        } finally {
+            lock.unlock();
+        }
+        // The line is only answered once it is durable, waiting outside the lock so other lines share the fsync
+        if (committed > 0) {
+            journal.awaitForced(committed);
+        }
+        out.print(buffer.toString(StandardCharsets.UTF_8));
+    }
+}
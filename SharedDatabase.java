@@ -0,0 +1,109 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Predicate database shared by the sessions of a server. Lines that only read the database run at the same time,
+ * while a line that may write to it runs alone.
+ */
+class SharedDatabase {
+    // Database of defined predicates, only written while the write lock is held
+    final HashMap<Symbol, HashMap<List<Token>, Predicate>> predicates;
+    // Index of the facts of each predicate, built lazily by readers so it has to allow concurrent inserts
+    final Map<Symbol, FactIndex> indexes = new ConcurrentHashMap<>();
+    // Facts of each predicate kept off the heap, only written while the write lock is held
+    final Map<Symbol, FactColumns> columns;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Set once a rule whose body writes to the database is defined, from then on every invocation runs alone
+    private volatile boolean writingRules;
+    // Advanced after every line that may have written to the database
+    private volatile long version;
+
+    /**
+     * Shares a database that was restored or loaded before the server started. Its indexes are built again as
+     * they are needed, and if one of its rules already writes to the database, every invocation runs alone.
+     *
+     * @param predicates the fact tables
+     * @param columns    the facts kept off the heap
+     */
+    public SharedDatabase(HashMap<Symbol, HashMap<List<Token>, Predicate>> predicates, Map<Symbol, FactColumns> columns) {
+        this.predicates = predicates;
+        this.columns = columns;
+        for (HashMap<List<Token>, Predicate> table : predicates.values()) {
+            for (Predicate predicate : table.values()) {
+                for (Statement evaluation : predicate.evaluations) {
+                    if (evaluation.opcode == Opcode.FATCI || evaluation.opcode == Opcode.CMAVO) {
+                        writingRules = true;
+                    }
+                }
+            }
+        }
+    }
+
+    public Lock readLock() {
+        return lock.readLock();
+    }
+
+    public Lock writeLock() {
+        return lock.writeLock();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Checks if analyzing a line may write to the database, in which case it needs the write lock
+     *
+     * @param statements the parsed statements of the line
+     * @return true if a statement defines facts or rules, or invokes a rule while some rule writes
+     */
+    public boolean mayWrite(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement.opcode == Opcode.FATCI || statement.opcode == Opcode.CMAVO) {
+                return true;
+            }
+            if (statement.opcode == Opcode.DATABASE && writingRules) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that a line was analyzed while holding the write lock
+     *
+     * @param statements the parsed statements of the line
+     * @return the new version of the database
+     */
+    public long written(List<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement.opcode == Opcode.CMAVO && statement.arguments.size() == 3
+                    && definesWrite(statement.arguments.get(2))) {
+                writingRules = true;
+            }
+        }
+        return ++version;
+    }
+
+    /**
+     * Helper method to check if the body of a rule names a predicate that writes to the database
+     */
+    private static boolean definesWrite(Object body) {
+        if (body instanceof Token token) {
+            if (token.type == Token.Type.PREDICATE) {
+                return Opcode.of(token.value.toString()) == Opcode.FATCI || Opcode.of(token.value.toString()) == Opcode.CMAVO;
+            }
+            return definesWrite(token.value);
+        }
+        if (body instanceof List<?> list) {
+            for (Object element : list) {
+                if (definesWrite(element)) return true;
+            }
+        }
+        return false;
+    }
+}
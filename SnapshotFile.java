@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the predicate database, the environment, and the deferred relations of an analyzer.
+ * <p>
+ * The file starts with a header: a magic number, the format version, and the offset of the symbol dictionary. The
+ * body holds the fact tables, then the bindings, then the deferred relations. Each table holds its plain facts, the
+ * ones without evaluations, as one run of token tuples, followed by its other facts with their full predicates. Every
+ * name, predicate, and string in the body is written as its index in the dictionary, which holds each of them once in
+ * UTF-8 at the end of the file. All numbers are big endian.
+ */
+final class SnapshotFile {
+    private static final int MAGIC = 0x4C4A534E;
+    private static final int VERSION = 3;
+    // Magic number, version, and dictionary offset
+    private static final int HEADER_SIZE = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Facts restored off the heap at once
+    private static final int BATCH_SIZE = 1 << 16;
+
+    // Tags of the values in the body
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte STRING = 2;
+    private static final byte LIST = 3;
+    private static final byte TOKEN = 4;
+    private static final byte INT_LIST = 5;
+    private static final byte SYMBOL = 6;
+
+    private static final Token.Type[] TOKEN_TYPES = Token.Type.values();
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes the database, environment, and deferred relations of an analyzer to a file
+     *
+     * @param path     the file to write, replaced if it exists
+     * @param analyzer the analyzer to save
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the environment holds a value the format has no tag for
+     */
+    static void save(Path path, Analyzer analyzer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(channel, false);
+            // The header is written last, once the offset of the dictionary is known
+            channel.position(HEADER_SIZE);
+
+            writer.putInt(analyzer.database.size());
+            for (Map.Entry<Symbol, HashMap<List<Token>, Predicate>> table : analyzer.database.entrySet()) {
+                // Facts kept off the heap are plain facts, the same as loaded ones
+                Symbol name = table.getKey();
+                FactColumns columns = analyzer.factColumns(name);
+                writer.putSymbol(name.text);
+                int rules = 0;
+                for (Map.Entry<List<Token>, Predicate> fact : table.getValue().entrySet()) {
+                    if (!isPlain(name, fact.getKey(), fact.getValue())) {
+                        rules++;
+                    }
+                }
+                writer.putInt(Math.toIntExact(table.getValue().size() - rules + (columns == null ? 0 : columns.size())));
+                for (Map.Entry<List<Token>, Predicate> fact : table.getValue().entrySet()) {
+                    if (isPlain(name, fact.getKey(), fact.getValue())) {
+                        writer.putTokens(fact.getKey());
+                    }
+                }
+                if (columns != null) {
+                    try {
+                        columns.forEach(key -> {
+                            try {
+                                writer.putTokens(key);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                }
+                writer.putInt(rules);
+                for (Map.Entry<List<Token>, Predicate> fact : table.getValue().entrySet()) {
+                    if (!isPlain(name, fact.getKey(), fact.getValue())) {
+                        writer.putTokens(fact.getKey());
+                        writer.putPredicate(fact.getValue(), fact.getKey());
+                    }
+                }
+            }
+
+            List<Object> bindings = new ArrayList<>();
+            analyzer.forEachBinding((name, value) -> {
+                bindings.add(name);
+                bindings.add(value);
+            });
+            writer.putInt(bindings.size() / 2);
+            for (Object value : bindings) {
+                writer.putValue(value);
+            }
+
+            // A relation waits under each of its unknown names, but is written once
+            Map<Relation, Integer> relations = new IdentityHashMap<>();
+            Map<Object, List<Relation>> pending = analyzer.pendingRelations();
+            pending.values().forEach(waiting -> waiting.forEach(relation -> relations.putIfAbsent(relation, relations.size())));
+            writer.putInt(relations.size());
+            Relation[] inOrder = new Relation[relations.size()];
+            relations.forEach((relation, index) -> inOrder[index] = relation);
+            for (Relation relation : inOrder) {
+                writer.putRelation(relation);
+            }
+            writer.putInt(pending.size());
+            for (Map.Entry<Object, List<Relation>> waiting : pending.entrySet()) {
+                writer.putValue(waiting.getKey());
+                writer.putInt(waiting.getValue().size());
+                for (Relation relation : waiting.getValue()) {
+                    writer.putInt(relations.get(relation));
+                }
+            }
+
+            long dictionaryOffset = HEADER_SIZE + writer.position();
+            writer.putInt(writer.symbols.size());
+            for (String symbol : writer.symbolList) {
+                byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+                writer.putInt(bytes.length);
+                writer.putBytes(bytes);
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(dictionaryOffset).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Restores the database, environment, and deferred relations saved in a file into an analyzer. The file is
+     * memory mapped, and its dictionary is resolved to symbols once before the body is decoded.
+     *
+     * @param path     the file to read
+     * @param analyzer the analyzer to restore into
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    static void restore(Path path, Analyzer analyzer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + path + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Snapshot " + path + " has version " + version + ", expected " + VERSION);
+            }
+            long dictionaryOffset = buffer.getLong();
+            try {
+                Reader reader = new Reader(buffer, readDictionary(buffer, (int) dictionaryOffset));
+                buffer.position(HEADER_SIZE);
+
+                int tables = buffer.getInt();
+                for (int i = 0; i < tables; i++) {
+                    Symbol name = reader.getSymbol();
+                    int facts = buffer.getInt();
+                    // Plain facts go off the heap if the analyzer keeps them there, in batches
+                    boolean offHeap = analyzer.offHeapFacts();
+                    HashMap<List<Token>, Predicate> table = offHeap ? new HashMap<>() : new HashMap<>(Math.max(16, facts * 4 / 3 + 1));
+                    analyzer.restoreTable(name, table);
+                    List<List<Token>> batch = new ArrayList<>();
+                    List<Statement> noEvaluations = List.of();
+                    for (int j = 0; j < facts; j++) {
+                        List<Token> key = reader.getTokens();
+                        if (offHeap) {
+                            batch.add(key);
+                            if (batch.size() == BATCH_SIZE) {
+                                analyzer.loadFacts(name, batch, facts);
+                                batch.clear();
+                            }
+                        } else {
+                            table.put(key, new Predicate(name, key, noEvaluations));
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        analyzer.loadFacts(name, batch, facts);
+                    }
+                    for (int j = buffer.getInt(); j > 0; j--) {
+                        List<Token> key = reader.getTokens();
+                        table.put(key, reader.getPredicate(key));
+                    }
+                }
+
+                int bindings = buffer.getInt();
+                for (int i = 0; i < bindings; i++) {
+                    Object name = reader.getValue();
+                    analyzer.restoreBinding(name, reader.getValue());
+                }
+
+                Relation[] relations = new Relation[buffer.getInt()];
+                for (int i = 0; i < relations.length; i++) {
+                    relations[i] = reader.getRelation();
+                }
+                int waitingNames = buffer.getInt();
+                for (int i = 0; i < waitingNames; i++) {
+                    Object name = reader.getValue();
+                    List<Relation> waiting = new ArrayList<>();
+                    for (int j = buffer.getInt(); j > 0; j--) {
+                        waiting.add(relations[buffer.getInt()]);
+                    }
+                    analyzer.restorePending(name, waiting);
+                }
+            } catch (RuntimeException e) {
+                // A truncated or corrupt file shows up as a read past the end or an index out of range
+                throw new IOException("Snapshot " + path + " is corrupt: " + e, e);
+            }
+        }
+    }
+
+    /**
+     * Helper method to read the symbol dictionary
+     *
+     * @param buffer the mapped file
+     * @param offset where the dictionary starts
+     * @return the symbols by index
+     */
+    private static Symbol[] readDictionary(ByteBuffer buffer, int offset) {
+        buffer.position(offset);
+        Symbol[] symbols = new Symbol[buffer.getInt()];
+        for (int i = 0; i < symbols.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            symbols[i] = Symbol.of(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return symbols;
+    }
+
+    /**
+     * Helper method to tell whether a fact is plain, that is it has no evaluations and its arguments are its key, so
+     * the key alone is enough to restore it
+     */
+    private static boolean isPlain(Symbol name, List<Token> key, Predicate predicate) {
+        return predicate.evaluations.isEmpty() && predicate.arguments == key && predicate.name == name;
+    }
+
+    /**
+     * Writes values through a buffer that is flushed to a channel when full. Symbols are numbered as they come for
+     * the dictionary, or written out in place where there is no dictionary, as in the journal.
+     */
+    static final class Writer {
+        final WritableByteChannel channel;
+        final boolean inlineSymbols;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final Map<String, Integer> symbols = new HashMap<>();
+        final List<String> symbolList = new ArrayList<>();
+        // Bytes flushed to the channel after the header so far
+        long written;
+
+        Writer(WritableByteChannel channel, boolean inlineSymbols) {
+            this.channel = channel;
+            this.inlineSymbols = inlineSymbols;
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(1);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            // Strings longer than the buffer are written in pieces
+            for (int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void putSymbol(String symbol) throws IOException {
+            if (inlineSymbols) {
+                byte[] bytes = symbol.getBytes(StandardCharsets.UTF_8);
+                putInt(bytes.length);
+                putBytes(bytes);
+                return;
+            }
+            Integer index = symbols.get(symbol);
+            if (index == null) {
+                index = symbolList.size();
+                symbols.put(symbol, index);
+                symbolList.add(symbol);
+            }
+            putInt(index);
+        }
+
+        void putToken(Token token) throws IOException {
+            putByte((byte) token.type.ordinal());
+            putValue(token.value);
+        }
+
+        void putTokens(List<Token> tokens) throws IOException {
+            putInt(tokens.size());
+            for (Token token : tokens) {
+                putToken(token);
+            }
+        }
+
+        void putRelation(Relation relation) throws IOException {
+            putSymbol(relation.predicate);
+            putToken(relation.total);
+            putToken(relation.part1);
+            putToken(relation.part2);
+        }
+
+        void putPredicate(Predicate predicate, List<Token> key) throws IOException {
+            putSymbol(predicate.name.text);
+            // The arguments of a predicate defined through cmavo are the key of its fact
+            if (predicate.arguments == key) {
+                putByte((byte) 1);
+            } else {
+                putByte((byte) 0);
+                putTokens(predicate.arguments);
+            }
+            putInt(predicate.evaluations.size());
+            for (Statement evaluation : predicate.evaluations) {
+                putSymbol(evaluation.predicate.text);
+                putTokens(evaluation.arguments);
+            }
+        }
+
+        void putValue(Object value) throws IOException {
+            if (value == null) {
+                putByte(NULL);
+            } else if (value instanceof Integer number) {
+                putByte(INT);
+                putInt(number);
+            } else if (value instanceof Symbol symbol) {
+                putByte(SYMBOL);
+                putSymbol(symbol.text);
+            } else if (value instanceof String string) {
+                putByte(STRING);
+                putSymbol(string);
+            } else if (value instanceof Token token) {
+                putByte(TOKEN);
+                putToken(token);
+            } else if (value instanceof IntList numbers) {
+                putByte(INT_LIST);
+                putInt(numbers.size());
+                for (int i = 0; i < numbers.size(); i++) {
+                    putInt(numbers.getInt(i));
+                }
+            } else if (value instanceof List<?> list) {
+                putByte(LIST);
+                putInt(list.size());
+                for (Object element : list) {
+                    putValue(element);
+                }
+            } else {
+                throw new IllegalArgumentException("Cannot save a value of type " + value.getClass().getSimpleName());
+            }
+        }
+
+        // Bytes put after the header so far, flushed or not
+        long position() {
+            return written + buffer.position();
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads values from a buffer, looking symbols up in the dictionary, or reading them inline if there is none
+     */
+    static final class Reader {
+        final ByteBuffer buffer;
+        final Symbol[] symbols;
+
+        Reader(ByteBuffer buffer, Symbol[] symbols) {
+            this.buffer = buffer;
+            this.symbols = symbols;
+        }
+
+        Symbol getSymbol() {
+            if (symbols == null) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                return Symbol.of(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return symbols[buffer.getInt()];
+        }
+
+        Relation getRelation() {
+            String predicate = getSymbol().text;
+            Token total = getToken();
+            Token part1 = getToken();
+            Token part2 = getToken();
+            return "vujni".equals(predicate)
+                    ? Relation.vujni(List.of(part1, total, part2))
+                    : Relation.sumji(List.of(total, part1, part2));
+        }
+
+        Token getToken() {
+            Token.Type type = TOKEN_TYPES[buffer.get()];
+            return Token.of(type, getValue());
+        }
+
+        List<Token> getTokens() {
+            int size = buffer.getInt();
+            List<Token> tokens = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                tokens.add(getToken());
+            }
+            return tokens;
+        }
+
+        Predicate getPredicate(List<Token> key) {
+            Symbol name = getSymbol();
+            List<Token> arguments = buffer.get() == 1 ? key : getTokens();
+            int count = buffer.getInt();
+            List<Statement> evaluations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Symbol predicate = getSymbol();
+                evaluations.add(new Statement(predicate, getTokens()));
+            }
+            // The evaluations are compiled on the first invocation
+            return new Predicate(name, arguments, evaluations);
+        }
+
+        Object getValue() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case INT:
+                    return buffer.getInt();
+                case STRING:
+                    return getSymbol().text;
+                case SYMBOL:
+                    return getSymbol();
+                case TOKEN:
+                    return getToken();
+                case INT_LIST: {
+                    int[] numbers = new int[buffer.getInt()];
+                    for (int i = 0; i < numbers.length; i++) {
+                        numbers[i] = buffer.getInt();
+                    }
+                    return IntList.of(numbers);
+                }
+                case LIST: {
+                    int size = buffer.getInt();
+                    List<Object> elements = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        elements.add(getValue());
+                    }
+                    return ConsList.of(elements, ConsList.empty());
+                }
+                default:
+                    throw new IllegalStateException("Unknown value tag " + tag);
+            }
+        }
+    }
+}
@@ -1,17 +1,25 @@
+import java.util.HashMap;
 import java.util.List;
 
 /**
  * Class structure for the statements
  */
 public class Statement {
-    String predicate;
+    Symbol predicate;
     List<Token> arguments;
     Result result;
+    // Handler of the predicate, resolved once when the statement is created
+    final Opcode opcode;
+    // Facts of a user defined predicate, resolved once the predicate is in the database, and the version of the
+    // tables of the database they were resolved at, written after them so a thread that sees the version sees them
+    HashMap<List<Token>, Predicate> facts;
+    volatile int factsVersion;
 
-    public Statement(String predicate, List<Token> arguments) {
+    public Statement(Symbol predicate, List<Token> arguments) {
         this.predicate = predicate;
         this.arguments = arguments;
         this.result = new Result( null);
+        this.opcode = Opcode.of(predicate.text);
     }
 
     public void setResult(Result result) {
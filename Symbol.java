@@ -0,0 +1,101 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A name or predicate word, kept once in a global symbol table that numbers the distinct words densely in the order
+ * they are first seen. The lexer turns every name and predicate word into its symbol, so the environment, the fact keys
+ * and the tables of the database hash a name by its number and compare two names by identity, without touching their
+ * text. A symbol prints as its text.
+ */
+final class Symbol {
+    private static final Map<String, Symbol> TABLE = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    // Number of the symbol, from 0 up in the order symbols were first seen
+    final int id;
+    final String text;
+    private final int hash;
+    // The shared tokens of the symbol as a name and as a predicate word, made on first use
+    private volatile Token name;
+    private volatile Token predicate;
+
+    private Symbol(int id, String text) {
+        this.id = id;
+        this.text = text;
+        this.hash = mix(id);
+    }
+
+    /**
+     * Gets the symbol of a word, adding it to the table if it is not there yet
+     *
+     * @param text the word
+     * @return the one symbol for the word
+     */
+    static Symbol of(String text) {
+        Symbol symbol = TABLE.get(text);
+        if (symbol == null) {
+            // Only the thread that adds the word takes a number for it, so the numbers stay dense
+            symbol = TABLE.computeIfAbsent(text, word -> new Symbol(NEXT_ID.getAndIncrement(), word));
+        }
+        return symbol;
+    }
+
+    /**
+     * Gets how many symbols there are
+     *
+     * @return one more than the highest number given to a symbol
+     */
+    static int count() {
+        return NEXT_ID.get();
+    }
+
+    /**
+     * Gets the shared token of the symbol for a type of token
+     *
+     * @param type the type of the token
+     * @return the token, or null if there is none yet or the type is neither a name nor a predicate word
+     */
+    Token token(Token.Type type) {
+        return type == Token.Type.NAME ? name : type == Token.Type.PREDICATE ? predicate : null;
+    }
+
+    /**
+     * Makes a token the shared token of the symbol for its type, unless another thread already did
+     *
+     * @param token the new name or predicate word token
+     * @return the shared token of the symbol for the type
+     */
+    synchronized Token share(Token token) {
+        if (token.type == Token.Type.NAME) {
+            if (name == null) name = token;
+            return name;
+        }
+        if (predicate == null) predicate = token;
+        return predicate;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Helper method to scatter the bits of a number, as the finalizer of murmur3 does. The hash of a list of names
+     * adds up the hashes of the names with small multipliers, so dense numbers, or any multiple of them, would give
+     * the same sum for many different lists.
+     */
+    private static int mix(int id) {
+        int hash = id;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ hash >>> 16;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -1,15 +1,70 @@
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Token {
+public final class Token {
     //Types of token
     enum Type {INITIATOR, SHORT_WORD, PREDICATE, NUMBER, NAME, LIST}
 
-    Type type;
-    Object value;
+    // Shared instances of the initiator and the short words, of which there are only a few
+    private static final Map<Type, Map<Object, Token>> INTERNED = new EnumMap<>(Type.class);
+    // Numbers from 0 up to but not including this one are shared from a fixed table
+    private static final int SMALL_NUMBERS = 1024;
+    private static final Token[] NUMBERS = new Token[SMALL_NUMBERS];
 
-    public Token(Type type, Object value) {
+    static {
+        INTERNED.put(Type.INITIATOR, new ConcurrentHashMap<>());
+        INTERNED.put(Type.SHORT_WORD, new ConcurrentHashMap<>());
+        for (int i = 0; i < SMALL_NUMBERS; i++) {
+            NUMBERS[i] = new Token(Type.NUMBER, i, true);
+        }
+    }
+
+    final Type type;
+    final Object value;
+    // Computed once since tokens are used as keys of the fact maps
+    private final int hash;
+    // Interned tokens are equal only to themselves
+    private final boolean interned;
+
+    private Token(Type type, Object value, boolean interned) {
         this.type = type;
         this.value = value;
+        // The ordinal rather than the identity hash of the type, so the hash is the same from one run to the next
+        this.hash = 31 * Objects.hashCode(value) + type.ordinal();
+        this.interned = interned;
+    }
+
+    /**
+     * Gets the token for a type and value. The initiator, short words, small numbers and the tokens of symbols are
+     * shared, so equal ones are the same instance. Any other token is a new instance, so the tokens of the many
+     * distinct large numbers a script may hold are not kept once it is done with them.
+     *
+     * @param type  the type of the token
+     * @param value the value of the token
+     * @return the shared token, or a new one
+     */
+    public static Token of(Type type, Object value) {
+        if (value instanceof Symbol symbol && (type == Type.NAME || type == Type.PREDICATE)) {
+            // A symbol is kept for good anyway, so it keeps its own tokens
+            Token token = symbol.token(type);
+            return token != null ? token : symbol.share(new Token(type, value, true));
+        }
+        if (value instanceof Integer number && type == Type.NUMBER && number >= 0 && number < SMALL_NUMBERS) {
+            return NUMBERS[number];
+        }
+        Map<Object, Token> table = INTERNED.get(type);
+        if (table == null || value == null) {
+            return new Token(type, value, false);
+        }
+        Token token = table.get(value);
+        if (token == null) {
+            Token created = new Token(type, value, true);
+            token = table.putIfAbsent(value, created);
+            if (token == null) token = created;
+        }
+        return token;
     }
 
     @Override
@@ -22,12 +77,13 @@ public class Token {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         Token token = (Token) obj;
-        return Objects.equals(value, token.value) && type == token.type;
+        if (interned && token.interned) return false;
+        return hash == token.hash && type == token.type && Objects.equals(value, token.value);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value, type);
+        return hash;
     }
 
 }
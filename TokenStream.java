@@ -0,0 +1,138 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily tokenizes a script from a reader, so that a large script never has to be held in memory
+ */
+class TokenStream implements Iterator<Token> {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Lexer lexer;
+    private final Reader reader;
+    // Buffer that is refilled from the reader and reused for the whole script
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    // Holds the characters of the word being read
+    private final StringBuilder word = new StringBuilder();
+    // The next token, read ahead so statement boundaries can be found
+    private Token lookahead;
+    private boolean finished;
+
+    public TokenStream(Lexer lexer, Reader reader) {
+        this.lexer = lexer;
+        this.reader = reader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (lookahead == null && !finished) {
+            lookahead = readToken();
+        }
+        return lookahead != null;
+    }
+
+    @Override
+    public Token next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Token token = lookahead;
+        lookahead = null;
+        return token;
+    }
+
+    /**
+     * Reads the tokens of the next statement, i.e. everything from an 'i' up to the next 'i'
+     *
+     * @param statement list that is cleared and filled with the tokens of the statement
+     * @return true if a statement was read, false at the end of the script
+     * @throws IllegalArgumentException if an illegal string is identified, the rest of the statement is skipped
+     */
+    public boolean nextStatement(List<Token> statement) throws IllegalArgumentException {
+        statement.clear();
+        try {
+            while (hasNext()) {
+                // Stop in front of the initiator that starts the following statement
+                if (lookahead.type == Token.Type.INITIATOR && !statement.isEmpty()) {
+                    break;
+                }
+                statement.add(next());
+            }
+        } catch (IllegalArgumentException e) {
+            statement.clear();
+            skipStatement();
+            throw e;
+        }
+        return !statement.isEmpty();
+    }
+
+    /**
+     * Helper method to drop the tokens up to the start of the next statement
+     */
+    private void skipStatement() {
+        while (true) {
+            try {
+                while (hasNext() && lookahead.type != Token.Type.INITIATOR) {
+                    lookahead = null;
+                }
+                return;
+            } catch (IllegalArgumentException e) {
+                // Invalid words in a skipped statement are ignored
+            }
+        }
+    }
+
+    /**
+     * Helper method to read and classify the next word
+     *
+     * @return the next token, or null at the end of the script
+     */
+    private Token readToken() {
+        // Skip the whitespace before the next word
+        while (true) {
+            if (position == limit && !fill()) {
+                finished = true;
+                return null;
+            }
+            if (!Lexer.isSpace(buffer[position])) break;
+            position++;
+        }
+        word.setLength(0);
+        boolean ascii = true;
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (Lexer.isSpace(c)) break;
+            if (c >= 128) ascii = false;
+            else if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            word.append(c);
+            position++;
+        }
+        // Leave anything outside of ASCII to the standard case mapping
+        String part = ascii ? word.toString() : word.toString().toLowerCase();
+        return lexer.classify(part);
+    }
+
+    /**
+     * Helper method to refill the buffer from the reader
+     *
+     * @return false if the end of the reader is reached
+     */
+    private boolean fill() {
+        try {
+            int read;
+            do {
+                read = reader.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            position = 0;
+            limit = Math.max(read, 0);
+            return read > 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}